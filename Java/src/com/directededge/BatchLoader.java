@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.directededge;
+
+import com.directededge.Database.ResourceException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects related queries for single items which arrive within a short
+ * window and sends them to the server as one batched query.  Queries are only
+ * batched together when they have the same options.
+ *
+ * Batches are sent from the loader's own threads rather than the database's
+ * executor, since callers on executor threads may be waiting for them.
+ *
+ * @see Database#setBatchWindow(long, int)
+ */
+final class BatchLoader
+{
+    private static class Batch
+    {
+        final String resource;
+        final Map<String, Object> options;
+        final Map<String, CompletableFuture<List<String>>> items =
+                new LinkedHashMap<String, CompletableFuture<List<String>>>();
+
+        Batch(String resource, Map<String, Object> options)
+        {
+            this.resource = resource;
+            this.options = options;
+        }
+    }
+
+    private final Database database;
+    private final long window;
+    private final int maxBatch;
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+    private final ThreadFactory threads = new ThreadFactory()
+    {
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "Directed Edge batch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(threads);
+    private final ExecutorService sender = Executors.newCachedThreadPool(threads);
+
+    /**
+     * @param window The number of milliseconds to wait for further queries
+     * after the first query of a batch arrives.
+     * @param maxBatch The number of items after which a batch is sent without
+     * waiting for the window to close.
+     */
+    BatchLoader(Database database, long window, int maxBatch)
+    {
+        this.database = database;
+        this.window = window;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Adds the item to the batch for its resource and options.
+     *
+     * @return A future which completes with the item's results once the batch
+     * has been answered.
+     */
+    CompletableFuture<List<String>> load(String resource, String id,
+            Map<String, Object> options)
+    {
+        final String key = resource + new TreeMap<String, Object>(options);
+        Batch full = null;
+        CompletableFuture<List<String>> future;
+
+        synchronized(this)
+        {
+            Batch batch = pending.get(key);
+
+            if(batch == null)
+            {
+                final Batch created =
+                        new Batch(resource, new HashMap<String, Object>(options));
+                batch = created;
+                pending.put(key, batch);
+                timer.schedule(() -> flush(key, created), window, TimeUnit.MILLISECONDS);
+            }
+
+            future = batch.items.get(id);
+
+            if(future == null)
+            {
+                future = new CompletableFuture<List<String>>();
+                batch.items.put(id, future);
+            }
+
+            if(batch.items.size() >= maxBatch)
+            {
+                pending.remove(key);
+                full = batch;
+            }
+        }
+
+        if(full != null)
+        {
+            send(full);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends any batches which are still waiting and stops the loader's
+     * threads once they have been answered.
+     */
+    void shutdown()
+    {
+        List<Batch> batches;
+
+        synchronized(this)
+        {
+            batches = new ArrayList<Batch>(pending.values());
+            pending.clear();
+        }
+
+        timer.shutdown();
+
+        for(Batch batch : batches)
+        {
+            send(batch);
+        }
+
+        sender.shutdown();
+    }
+
+    private void flush(String key, Batch batch)
+    {
+        synchronized(this)
+        {
+            if(pending.get(key) != batch)
+            {
+                return;
+            }
+
+            pending.remove(key);
+        }
+
+        send(batch);
+    }
+
+    private void send(final Batch batch)
+    {
+        try
+        {
+            sender.execute(() ->
+            {
+                try
+                {
+                    answer(batch);
+                }
+                catch (Throwable ex)
+                {
+                    fail(batch, ex);
+
+                    if(ex instanceof Error)
+                    {
+                        throw (Error) ex;
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            fail(batch, ex);
+        }
+    }
+
+    private void answer(Batch batch)
+    {
+        // Failed items complete exceptionally, as an unbatched query would, so
+        // that the failure is not cached as an empty list.
+
+        Map<String, ResourceException> failures = new HashMap<String, ResourceException>();
+        Map<String, List<String>> results = database.readLists(batch.resource,
+                batch.items.keySet(), batch.options, failures);
+
+        for(Map.Entry<String, CompletableFuture<List<String>>> item : batch.items.entrySet())
+        {
+            ResourceException error = failures.get(item.getKey());
+
+            if(error != null)
+            {
+                item.getValue().completeExceptionally(error);
+            }
+            else
+            {
+                item.getValue().complete(results.get(item.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Completes the batch's futures which have not been answered yet with the
+     * error, so that callers waiting on them are released.
+     */
+    private void fail(Batch batch, Throwable error)
+    {
+        for(CompletableFuture<List<String>> future : batch.items.values())
+        {
+            future.completeExceptionally(error);
+        }
+    }
+}
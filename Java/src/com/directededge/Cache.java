@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.directededge;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded, thread-safe cache which can be attached to a Database to avoid
+ * repeated requests for the same data.  Entries are dropped once they are
+ * older than the cache's time-to-live, and the least recently used entries are
+ * evicted when the approximate memory used by the cache passes its limit.
+ *
+ * A cache may also have a shorter refresh interval.  Entries older than that
+ * are still returned immediately, while a single background request fetches a
+ * replacement, so that popular entries do not expire under load.
+ *
+ * @see Database#setItemCache(com.directededge.Cache)
+ * @see Database#setQueryCache(com.directededge.Cache)
+ */
+public class Cache
+{
+    private static class Entry
+    {
+        final Object value;
+        final long weight;
+        final long refreshAt;
+        final long expires;
+        boolean refreshing;
+
+        Entry(Object value, long weight, long refreshAt, long expires)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.refreshAt = refreshAt;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The fetches in progress for a key.  The generation is bumped whenever
+     * the key is written or invalidated, so that values fetched before that
+     * are not stored over the newer state.
+     */
+    private static class Fetches
+    {
+        long generation;
+        int count;
+    }
+
+    private final long maxWeight;
+    private final long refreshAfter;
+    private final long timeToLive;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, Fetches> fetches = new HashMap<String, Fetches>();
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long refreshes;
+
+    /**
+     * @param maxWeight The approximate number of bytes the cached values may
+     * use before the least recently used are evicted.
+     * @param timeToLive The number of milliseconds an entry stays valid.
+     */
+    public Cache(long maxWeight, long timeToLive)
+    {
+        this(maxWeight, timeToLive, timeToLive);
+    }
+
+    /**
+     * @param maxWeight The approximate number of bytes the cached values may
+     * use before the least recently used are evicted.
+     * @param refreshAfter The number of milliseconds after which an entry is
+     * refreshed in the background while it continues to be served.
+     * @param timeToLive The number of milliseconds after which an entry is no
+     * longer served and callers wait for a fresh one.
+     */
+    public Cache(long maxWeight, long refreshAfter, long timeToLive)
+    {
+        this.maxWeight = maxWeight;
+        this.refreshAfter = Math.min(refreshAfter, timeToLive);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return The number of lookups which were answered from the cache.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups which were not in the cache or had
+     * expired.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return The fraction of lookups answered from the cache, from 0 to 1.
+     */
+    public synchronized double getHitRate()
+    {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * @return The number of entries evicted to stay within the size limit.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return The number of background refreshes which have been started.
+     */
+    public synchronized long getRefreshes()
+    {
+        return refreshes;
+    }
+
+    /**
+     * @return The number of entries currently in the cache.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return The approximate number of bytes used by the cached values.
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Removes all entries from the cache.  The statistics are kept.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+
+        for(Fetches pending : fetches.values())
+        {
+            pending.generation++;
+        }
+    }
+
+    synchronized Object get(String key)
+    {
+        Entry entry = entries.get(key);
+
+        if(entry != null && entry.expires < System.currentTimeMillis())
+        {
+            remove(key);
+            entry = null;
+        }
+
+        if(entry == null)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @return True if the key has a value which has not expired.  Unlike
+     * get(), this is not counted as a lookup.
+     */
+    synchronized boolean contains(String key)
+    {
+        Entry entry = entries.get(key);
+        return entry != null && entry.expires >= System.currentTimeMillis();
+    }
+
+    synchronized void put(String key, Object value, long valueWeight)
+    {
+        changed(key);
+        store(key, value, valueWeight);
+    }
+
+    /**
+     * Stores a value from a fetch started with startFetch(), unless the key
+     * has been written or invalidated since the fetch started.
+     *
+     * @return True if the value was stored.
+     */
+    synchronized boolean put(String key, Object value, long valueWeight, long generation)
+    {
+        Fetches pending = fetches.get(key);
+
+        if(pending != null && pending.generation != generation)
+        {
+            return false;
+        }
+
+        store(key, value, valueWeight);
+        return true;
+    }
+
+    /**
+     * Registers a fetch for a key, which must be followed by endFetch() once
+     * the fetch is done.
+     *
+     * @return The key's generation, to be passed to put() with the value.
+     */
+    synchronized long startFetch(String key)
+    {
+        Fetches pending = fetches.get(key);
+
+        if(pending == null)
+        {
+            pending = new Fetches();
+            fetches.put(key, pending);
+        }
+
+        pending.count++;
+        return pending.generation;
+    }
+
+    synchronized void endFetch(String key)
+    {
+        Fetches pending = fetches.get(key);
+
+        if(pending != null && --pending.count == 0)
+        {
+            fetches.remove(key);
+        }
+    }
+
+    /**
+     * Claims the refresh of an entry which is past its refresh interval but
+     * has not expired.  Only one caller is given the refresh until the entry
+     * is replaced or refreshFailed() is called.
+     *
+     * @return True if the caller should fetch a replacement for the entry.
+     */
+    synchronized boolean startRefresh(String key)
+    {
+        Entry entry = entries.get(key);
+
+        if(entry == null || entry.refreshing ||
+           entry.refreshAt > System.currentTimeMillis())
+        {
+            return false;
+        }
+
+        entry.refreshing = true;
+        refreshes++;
+        return true;
+    }
+
+    /**
+     * Releases a refresh claimed with startRefresh() so that it can be tried
+     * again by a later caller.
+     */
+    synchronized void refreshFailed(String key)
+    {
+        Entry entry = entries.get(key);
+
+        if(entry != null)
+        {
+            entry.refreshing = false;
+        }
+    }
+
+    synchronized void invalidate(String key)
+    {
+        changed(key);
+        remove(key);
+    }
+
+    private void changed(String key)
+    {
+        Fetches pending = fetches.get(key);
+
+        if(pending != null)
+        {
+            pending.generation++;
+        }
+    }
+
+    private void store(String key, Object value, long valueWeight)
+    {
+        if(valueWeight > maxWeight)
+        {
+            remove(key);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Entry previous = entries.put(key, new Entry(value, valueWeight,
+                now + refreshAfter, now + timeToLive));
+
+        if(previous != null)
+        {
+            weight -= previous.weight;
+        }
+
+        weight += valueWeight;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while(weight > maxWeight && iterator.hasNext())
+        {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(String key)
+    {
+        Entry entry = entries.remove(key);
+
+        if(entry != null)
+        {
+            weight -= entry.weight;
+        }
+    }
+}
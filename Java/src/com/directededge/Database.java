@@ -26,34 +26,66 @@
 package com.directededge;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLStreamException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 
@@ -61,6 +93,11 @@ import org.apache.http.util.EntityUtils;
  * Represents a database on the Directed Edge servers.  A database is simply
  * a collection of items.  See developer.directededge.com for more information
  * on the concepts in place here and throughout the Directed Edge API.
+ *
+ * A database keeps a pool of HTTP connections to the server and may be shared
+ * between threads.  The asynchronous variants of its methods run on the
+ * database's executor and return immediately.  Identical item reads and
+ * queries made at the same time from several threads share one request.
  */
 
 public class Database
@@ -79,11 +116,46 @@ public class Database
         DELETE
     }
 
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final int MAX_QUERY_LENGTH = 2000;
+    private static final int TAG_INDEX_RESULTS = 100;
+
     private String name;
     private String host;
     private Protocol protocol;
-    private DefaultHttpClient client;
+    private CloseableHttpClient client;
+    private PoolingHttpClientConnectionManager connectionManager;
     private UsernamePasswordCredentials credentials;
+    private volatile RequestConfig requestConfig = RequestConfig.DEFAULT;
+    private volatile long keepAlive;
+    private volatile boolean compressUploads;
+    private IdleConnectionMonitor idleConnectionMonitor;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private volatile Cache itemCache;
+    private volatile Cache queryCache;
+    private volatile BatchLoader batchLoader;
+    private volatile TagIndex tagIndex;
+    private volatile WriteBehind writeBehind;
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<Object>>();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * A request which is run on the database's executor.
+     */
+    interface Request<T>
+    {
+        T run() throws ResourceException;
+    }
+
+    /**
+     * Reads the body of a response as it is received from the server.
+     */
+    interface ResponseReader<T>
+    {
+        T read(InputStream stream) throws IOException, XMLStreamException;
+    }
 
     /**
      * This is thrown when a resource cannot be read or written for some reason.
@@ -122,15 +194,28 @@ public class Database
             host = "webservices.directededge.com";
         }
 
-        client = new DefaultHttpClient();
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS);
+
+        BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
 
         if(username != null)
         {
             credentials = new UsernamePasswordCredentials(username, password);
-            client.getCredentialsProvider().setCredentials(
+            credentialsProvider.setCredentials(
                     new AuthScope(host, protocol == Protocol.HTTP ? 80 : 443),
                     credentials);
         }
+
+        // The builder's client asks for compressed responses and inflates
+        // them as they are read.
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy())
+                .setDefaultCredentialsProvider(credentialsProvider)
+                .build();
     }
 
     /**
@@ -147,14 +232,289 @@ public class Database
 
     /**
      * Used to import a Directed Edge XML file.  Usually used in conjunction
-     * with the Exporter.
+     * with the Exporter.  Files ending in ".gz" are sent as they are when
+     * uploads are compressed, and are decompressed while uploading otherwise.
+     *
      * @param fileName The file path of a Directed Edge XML file.
      * @see Exporter
+     * @see #setCompressUploads(boolean)
      */
     public void importFromFile(String fileName) throws ResourceException
     {
-        upload(Method.PUT, new ArrayList<String>(), new HashMap<String, Object>(),
-                new FileEntity(new File(fileName), "text/xml"));
+        File file = new File(fileName);
+        HttpEntity entity;
+        InputStream input = null;
+
+        if(!fileName.endsWith(".gz"))
+        {
+            entity = new FileEntity(file, "text/xml");
+        }
+        else if(compressUploads)
+        {
+            FileEntity fileEntity = new FileEntity(file, "text/xml");
+            fileEntity.setContentEncoding("gzip");
+            entity = fileEntity;
+        }
+        else
+        {
+            try
+            {
+                input = new FileInputStream(file);
+                input = new GZIPInputStream(input);
+                InputStreamEntity streamEntity = new InputStreamEntity(input, -1);
+                streamEntity.setContentType("text/xml");
+                entity = streamEntity;
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+                closeInput(input);
+                throw new ResourceException(Method.PUT, url(new ArrayList<String>(), null));
+            }
+        }
+
+        try
+        {
+            upload(Method.PUT, new ArrayList<String>(), new HashMap<String, Object>(), entity);
+        }
+        finally
+        {
+            closeInput(input);
+        }
+    }
+
+    private static void closeInput(InputStream input)
+    {
+        if(input == null)
+        {
+            return;
+        }
+
+        try
+        {
+            input.close();
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Reads many items from the database at once.  The items are fetched in
+     * parallel, with no more requests in flight than the connection pool
+     * allows, and the returned items need no further requests to read their
+     * links, tags or properties.
+     *
+     * @param ids The IDs of the items to read.
+     * @return A map from ID to item, in the order given, for the items which
+     * could be read.
+     * @see #readItems(java.util.Collection, java.util.Map)
+     */
+    public Map<String, Item> readItems(Collection<String> ids)
+    {
+        return readItems(ids, new HashMap<String, ResourceException>());
+    }
+
+    /**
+     * Reads many items from the database at once, reporting the items which
+     * could not be read.  Unlike reading a single item, an item which does not
+     * exist on the server is reported as a failure rather than read as empty.
+     *
+     * @param ids The IDs of the items to read.
+     * @param failures A map which receives the error for each item which could
+     * not be read.
+     * @return A map from ID to item, in the order given, for the items which
+     * could be read.
+     */
+    public Map<String, Item> readItems(Collection<String> ids,
+            Map<String, ResourceException> failures)
+    {
+        List<String> unique = new ArrayList<String>(new LinkedHashSet<String>(ids));
+        List<Request<ItemSnapshot>> requests = new ArrayList<Request<ItemSnapshot>>();
+
+        for(final String id : unique)
+        {
+            requests.add(() -> readItem(id));
+        }
+
+        List<CompletableFuture<ItemSnapshot>> snapshots = fanOut(requests);
+        Map<String, Item> items = new LinkedHashMap<String, Item>();
+
+        for(int i = 0; i < unique.size(); i++)
+        {
+            String id = unique.get(i);
+
+            try
+            {
+                Item item = new Item(this, id);
+                item.load(snapshots.get(i).join());
+                items.put(id, item);
+            }
+            catch (CompletionException ex)
+            {
+                if(!(ex.getCause() instanceof ResourceException))
+                {
+                    throw ex;
+                }
+
+                failures.put(id, (ResourceException) ex.getCause());
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * Removes many items from the database.  The IDs are sent in chunks of
+     * 10000 using the delete update method, rather than as one request per item
+     * as with Item.destroy().
+     *
+     * @param ids The IDs of the items to remove.
+     * @return A summary of the uploaded chunks; failed chunks may be retried.
+     * @see #deleteItems(java.lang.Iterable, int)
+     */
+    public Updater.Summary deleteItems(Iterable<String> ids)
+    {
+        return deleteItems(ids, 10000);
+    }
+
+    /**
+     * Removes many items from the database in chunks of the given size.
+     *
+     * @param ids The IDs of the items to remove.  These are read as they are
+     * sent, so they may come from e.g. a stream which does not fit in memory.
+     * @param chunkSize The number of items to send in each request.
+     * @return A summary of the uploaded chunks; failed chunks may be retried.
+     * @see Updater#retry(com.directededge.Updater.Chunk)
+     */
+    public Updater.Summary deleteItems(Iterable<String> ids, int chunkSize)
+    {
+        Updater updater = new Updater(this, Updater.Method.Delete);
+        updater.setChunkSize(chunkSize, 0);
+
+        for(String id : ids)
+        {
+            updater.export(new Item(this, id));
+        }
+
+        return updater.commit();
+    }
+
+    /**
+     * Finds related items for each of a set of items.  This uses a single
+     * request for many items, falling back to a bounded number of parallel
+     * requests for single items where the batch query is not available.
+     *
+     * @param items The IDs of the items to find related items for.
+     * @return A map from each item ID to a list of related item IDs.
+     * @see Item#getRelated()
+     */
+    public Map<String, List<String>> getRelated(Collection<String> items)
+    {
+        return getRelated(items, new HashSet<String>(), 20);
+    }
+
+    /**
+     * Finds related items for each of a set of items.
+     *
+     * @param items The IDs of the items to find related items for.
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result sets.
+     * @param maxResults The maximum number of items to return for each item.
+     * @return A map from each item ID to a list of related item IDs.
+     * @see Item#getRelated(java.util.Set, int)
+     */
+    public Map<String, List<String>> getRelated(Collection<String> items,
+            Set<String> tags, int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", false);
+        return getRelated(items, tags, options);
+    }
+
+    /**
+     * Finds related items for each of a set of items.
+     *
+     * @param items The IDs of the items to find related items for.
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result sets.
+     * @param options A set of options that will be passed on to the web
+     * services API, as with Item.getRelated().
+     * @return A map from each item ID to a list of related item IDs.  Items for
+     * which no results could be fetched map to an empty list.
+     * @see Item#getRelated(java.util.Set, java.util.Map)
+     */
+    public Map<String, List<String>> getRelated(Collection<String> items,
+            Set<String> tags, Map<String, Object> options)
+    {
+        options.put("tags", StringUtils.join(tags, ','));
+        return readLists("related", items, options, null);
+    }
+
+    /**
+     * Finds items related to a group of items taken together, e.g. the items
+     * in a shopping basket.  This produces one result set for the whole group
+     * in a single request.
+     *
+     * @param items The IDs of the items in the group.
+     * @return A list of item IDs related to the group, sorted by relevance.
+     */
+    public List<String> getGroupRelated(Collection<String> items)
+    {
+        return getGroupRelated(items, new HashSet<String>(), 20);
+    }
+
+    /**
+     * Finds items related to a group of items taken together.
+     *
+     * @param items The IDs of the items in the group.
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param maxResults The maximum number of items to return.
+     * @return A list of item IDs related to the group, sorted by relevance.
+     */
+    public List<String> getGroupRelated(Collection<String> items, Set<String> tags,
+            int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", false);
+        return getGroupRelated(items, tags, options);
+    }
+
+    /**
+     * Finds items related to a group of items taken together.
+     *
+     * @param items The IDs of the items in the group.
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param options A set of options that will be passed on to the web
+     * services API, as with Item.getRelated().
+     * @return A list of item IDs related to the group, sorted by relevance, or
+     * an empty list if the query failed.
+     */
+    public List<String> getGroupRelated(Collection<String> items, Set<String> tags,
+            Map<String, Object> options)
+    {
+        if(items.isEmpty())
+        {
+            return new ArrayList<String>();
+        }
+
+        options.put("items", StringUtils.join(items, ','));
+        options.put("tags", StringUtils.join(tags, ','));
+        options.put("union", true);
+
+        try
+        {
+            return readList(Arrays.asList("related"), options, "related");
+        }
+        catch (ResourceException ex)
+        {
+            return new ArrayList<String>();
+        }
     }
 
     /**
@@ -174,17 +534,46 @@ public class Database
 
     public String get(List<String> resources, Map<String, Object> options)
             throws ResourceException
+    {
+        return get(resources, options, (InputStream stream) ->
+                IOUtils.toString(stream, "UTF-8"));
+    }
+
+    /**
+     * Fetches the sub-resources and hands the response body to reader as it
+     * streams in, without buffering the whole response first.
+     *
+     * @param resources The subresource to fetch.
+     * @param options The query parameters for the request.
+     * @param reader Parses the body of the response.
+     * @return The value produced by reader.
+     * @throws ResourceException Throws a ResourceException if the resources
+     * cannot be found, or if the response cannot be read.
+     */
+    <T> T get(List<String> resources, Map<String, Object> options,
+            ResponseReader<T> reader) throws ResourceException
     {
         HttpGet request = new HttpGet(url(resources, options));
-        addAuthenticationHeader(request);
+        prepare(request);
 
         try
         {
+            requests.incrementAndGet();
             HttpResponse response = client.execute(request);
             checkResponseCode(Method.GET, resources, options, response);
-            return EntityUtils.toString(response.getEntity());
+
+            InputStream stream = response.getEntity().getContent();
+
+            try
+            {
+                return reader.read(stream);
+            }
+            finally
+            {
+                stream.close();
+            }
         }
-        catch (IOException ex)
+        catch (IOException | XMLStreamException ex)
         {
             Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
             throw new ResourceException(Method.GET, url(resources, options));
@@ -235,13 +624,20 @@ public class Database
         }
     }
 
+    void post(List<String> resources, HttpEntity entity, Map<String, Object> options)
+            throws ResourceException
+    {
+        upload(Method.POST, resources, options, entity);
+    }
+
     public void delete(List<String> resources) throws ResourceException
     {
         HttpDelete request = new HttpDelete(url(resources, null));
-        addAuthenticationHeader(request);
+        prepare(request);
 
         try
         {
+            requests.incrementAndGet();
             HttpResponse response = client.execute(request);
             checkResponseCode(Method.DELETE, resources, null, response);
             EntityUtils.consume(response.getEntity());
@@ -254,93 +650,1128 @@ public class Database
     }
 
     /**
-     * Sets the connection and socket timeouts.
-     * @param milliseconds The number of milliseconds to wait before aborting
-     * HTTP operations.
+     * Asynchronous version of get().
+     *
+     * @param resources The subresource to fetch.
+     * @return A future which completes with the content of the sub resources,
+     * or exceptionally with a ResourceException.
+     * @see #get(java.util.List)
      */
+    public CompletableFuture<String> getAsync(List<String> resources)
+    {
+        return getAsync(resources, new HashMap<String, Object>());
+    }
 
-    public void setTimeout(int milliseconds)
+    public CompletableFuture<String> getAsync(final List<String> resources,
+            final Map<String, Object> options)
     {
-        HttpParams params = client.getParams();
-        HttpConnectionParams.setConnectionTimeout(params, milliseconds);
-        HttpConnectionParams.setSoTimeout(params, milliseconds);
+        return submit(() -> get(resources, options));
     }
 
-    private void upload(Method method, List<String> resources, Map<String, Object> options, HttpEntity entity) throws ResourceException
+    public CompletableFuture<Void> putAsync(List<String> resources, String data)
     {
-        HttpEntityEnclosingRequestBase request;
+        return putAsync(resources, data, new HashMap<String, Object>());
+    }
 
-        if(method == Method.PUT)
-        {
-            request = new HttpPut(url(resources, options));
-        }
-        else if(method == Method.POST)
-        {
-            request = new HttpPost(url(resources, options));
-        }
-        else
+    public CompletableFuture<Void> putAsync(final List<String> resources,
+            final String data, final Map<String, Object> options)
+    {
+        return submit(() ->
         {
-            throw new IllegalArgumentException();
-        }
+            put(resources, data, options);
+            return null;
+        });
+    }
 
-        addAuthenticationHeader(request);
-        request.setEntity(entity);
+    public CompletableFuture<Void> postAsync(List<String> resources, String data)
+    {
+        return postAsync(resources, data, new HashMap<String, Object>());
+    }
 
-        try
+    public CompletableFuture<Void> postAsync(final List<String> resources,
+            final String data, final Map<String, Object> options)
+    {
+        return submit(() ->
         {
-            HttpResponse response = client.execute(request);
-            checkResponseCode(Method.PUT, resources, options, response);
-            EntityUtils.consume(response.getEntity());
-        }
-        catch (IOException ex)
+            post(resources, data, options);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteAsync(final List<String> resources)
+    {
+        return submit(() ->
         {
-            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
-            throw new ResourceException(Method.PUT, url(resources, options));
-        }
+            delete(resources);
+            return null;
+        });
     }
 
-    private void addAuthenticationHeader(HttpRequest request)
+    /**
+     * Sets the executor used to run asynchronous requests.  By default a pool
+     * of daemon threads is created when the first asynchronous request is made.
+     * Concurrent requests are still limited by the size of the connection pool.
+     *
+     * @param executor The executor for asynchronous requests.
+     * @see #setMaxConnections(int, int)
+     */
+    public synchronized void setExecutor(Executor executor)
     {
-        request.addHeader(BasicScheme.authenticate(credentials, "US-ASCII", false));
+        this.executor = executor;
     }
 
-    private String url(List<String> resources, Map<String, Object> options)
+    /**
+     * Attaches a cache for item reads which is shared by all items of this
+     * database.  Items read their links, tags and properties from the cache if
+     * another item with the same ID has read them recently, and saving or
+     * destroying an item updates or removes its entry.
+     *
+     * @param cache The cache to use, or null to disable item caching.
+     */
+    public void setItemCache(Cache cache)
     {
-        try
-        {
-            resources = new ArrayList<String>(resources);
+        itemCache = cache;
+    }
 
-            for(int i = 0; i < resources.size(); i++)
-            {
-                resources.set(i, encode(resources.get(i)));
-            }
+    /**
+     * @return The item cache, or null if none is attached.
+     * @see #setItemCache(com.directededge.Cache)
+     */
+    public Cache getItemCache()
+    {
+        return itemCache;
+    }
 
-            URL url = new URL(String.format("%s://%s/api/v1/%s/%s%s",
-                    protocol.toString().toLowerCase(),
-                    host,
-                    name,
-                    StringUtils.join(resources, '/'),
-                    queryString(options)));
+    /**
+     * Attaches a cache for related and recommended queries.  Queries for the
+     * same item with the same options are answered from the cache until the
+     * entry expires or is evicted.
+     *
+     * @param cache The cache to use, or null to disable query caching.
+     */
+    public void setQueryCache(Cache cache)
+    {
+        queryCache = cache;
+    }
 
-            return url.toString();
-        }
-        catch (MalformedURLException ex)
+    /**
+     * Attaches an index of item tags.  When a query cache is also attached,
+     * queries filtered by tags fetch one longer, untagged result list which is
+     * cached and filtered locally for each set of tags.
+     *
+     * @param index The index to use, or null to always filter on the server.
+     * @see TagIndex
+     */
+    public void setTagIndex(TagIndex index)
+    {
+        tagIndex = index;
+    }
+
+    /**
+     * @return The tag index, or null if none is attached.
+     * @see #setTagIndex(com.directededge.TagIndex)
+     */
+    public TagIndex getTagIndex()
+    {
+        return tagIndex;
+    }
+
+    /**
+     * Enables write-behind saves.  Item.save() then queues the item's changes
+     * and returns at once, and the changes are written in batches from a
+     * background thread.  Changes to the same item within the window are
+     * merged and sent once.  Reads do not reflect queued changes until they
+     * have been written.  Item.commit() still writes immediately, after first
+     * writing any queued changes to the same item.  Changes in batches which
+     * the server does not accept stay queued and are sent again, after twice
+     * the previous delay, until they have failed five times; they are then
+     * logged and dropped.
+     *
+     * @param window The number of milliseconds that changes are collected for
+     * before they are written, or zero to write each save immediately.
+     * @param maxItems The number of items with unwritten changes after which
+     * saves wait for the queue to be written.  This must be at least one
+     * unless write-behind saves are being disabled.
+     * @throws IllegalArgumentException If window is negative or maxItems is
+     * less than one.
+     * @see #flushWrites()
+     */
+    public synchronized void setWriteBehind(long window, int maxItems)
+    {
+        if(window < 0 || (window > 0 && maxItems < 1))
         {
-            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
+            throw new IllegalArgumentException(
+                    "The window must not be negative and at least one item must be queued.");
         }
-        catch (UnsupportedEncodingException ex)
+
+        if(writeBehind != null)
         {
-            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
+            writeBehind.shutdown();
         }
+
+        writeBehind = window > 0 ? new WriteBehind(this, window, maxItems) : null;
     }
 
-    private void checkResponseCode(Method method, List<String> resources,
-            Map<String, Object> options, HttpResponse response)
-            throws ResourceException, IOException
+    /**
+     * Writes all changes queued by write-behind saves and waits until the
+     * server has accepted them.
+     *
+     * @throws ResourceException If some of the queued changes were not
+     * accepted.  Those changes stay queued and are sent again with the next
+     * batch, unless they have already failed five times.
+     * @see #setWriteBehind(long, int)
+     */
+    public void flushWrites() throws ResourceException
     {
-        int code = response.getStatusLine().getStatusCode();
+        WriteBehind queue = writeBehind;
+
+        if(queue != null)
+        {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Enables batching of related queries for single items.  Queries with the
+     * same options which arrive within the window are sent to the server as
+     * one request, and each caller receives its own results.  This trades a
+     * small delay for fewer round trips when many independent callers query
+     * the database at once.  Recommended queries are always sent on their own,
+     * since the server only answers batched queries for related items.
+     *
+     * @param window The number of milliseconds to wait for further queries
+     * after the first one arrives, or zero to disable batching.
+     * @param maxBatch The number of items after which a batch is sent without
+     * waiting for the rest of the window.
+     */
+    public synchronized void setBatchWindow(long window, int maxBatch)
+    {
+        if(batchLoader != null)
+        {
+            batchLoader.shutdown();
+        }
+
+        batchLoader = window > 0 ? new BatchLoader(this, window, maxBatch) : null;
+    }
+
+    /**
+     * @return The query cache, or null if none is attached.
+     * @see #setQueryCache(com.directededge.Cache)
+     */
+    public Cache getQueryCache()
+    {
+        return queryCache;
+    }
+
+    /**
+     * @return The number of requests which have been sent to the server,
+     * including those which failed.
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Sets the connection and socket timeouts.
+     * @param milliseconds The number of milliseconds to wait before aborting
+     * HTTP operations.
+     */
+
+    public void setTimeout(int milliseconds)
+    {
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(milliseconds)
+                .setSocketTimeout(milliseconds)
+                .setConnectionRequestTimeout(milliseconds)
+                .build();
+    }
+
+    /**
+     * Compresses the bodies of imports, updates and saves with gzip and sends
+     * them with "Content-Encoding: gzip".  Directed Edge XML typically shrinks
+     * by an order of magnitude, which matters most for bandwidth-bound
+     * imports.
+     *
+     * @param compress Whether uploads should be compressed.
+     */
+    public void setCompressUploads(boolean compress)
+    {
+        compressUploads = compress;
+    }
+
+    /**
+     * Sets the size of the connection pool.  Requests made while all
+     * connections are in use wait for one to be released.
+     *
+     * @param maxTotal The maximum number of open connections.
+     * @param maxPerRoute The maximum number of open connections to a single
+     * host.
+     */
+    public void setMaxConnections(int maxTotal, int maxPerRoute)
+    {
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    /**
+     * Sets how long an unused connection is kept open for reuse when the
+     * server does not send a keep-alive timeout of its own.
+     *
+     * @param milliseconds The keep-alive duration, or zero to keep connections
+     * open for as long as the server allows.
+     */
+    public void setKeepAlive(long milliseconds)
+    {
+        keepAlive = milliseconds;
+    }
+
+    /**
+     * Starts a background thread which closes expired connections and those
+     * that have been idle for longer than the given time.
+     *
+     * @param milliseconds The time after which idle connections are closed,
+     * or zero to stop evicting idle connections.
+     */
+    public synchronized void setIdleTimeout(long milliseconds)
+    {
+        if(idleConnectionMonitor != null)
+        {
+            idleConnectionMonitor.shutdown();
+            idleConnectionMonitor = null;
+        }
+
+        if(milliseconds > 0)
+        {
+            idleConnectionMonitor = new IdleConnectionMonitor(milliseconds);
+            idleConnectionMonitor.start();
+        }
+    }
+
+    /**
+     * Closes all pooled connections and stops background threads.  The
+     * database may not be used after it has been closed.
+     */
+    public synchronized void close()
+    {
+        if(writeBehind != null)
+        {
+            writeBehind.shutdown();
+            writeBehind = null;
+        }
+
+        if(idleConnectionMonitor != null)
+        {
+            idleConnectionMonitor.shutdown();
+            idleConnectionMonitor = null;
+        }
+
+        if(batchLoader != null)
+        {
+            batchLoader.shutdown();
+            batchLoader = null;
+        }
+
+        if(defaultExecutor != null)
+        {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Reads an item from the item cache if it is there, or from the server.
+     */
+    ItemSnapshot readItem(final String id) throws ResourceException
+    {
+        Request<ItemSnapshot> fetch = () ->
+        {
+            Map<String, Map<String, Integer>> links =
+                    new HashMap<String, Map<String, Integer>>();
+            HashSet<String> tags = new HashSet<String>();
+            LinkedHashSet<String> preselected = new LinkedHashSet<String>();
+            LinkedHashSet<String> blacklisted = new LinkedHashSet<String>();
+            Map<String, String> properties = new HashMap<String, String>();
+
+            get(Arrays.asList("items", id), new HashMap<String, Object>(),
+                    Parser.item(links, tags, preselected, blacklisted, properties));
+
+            return new ItemSnapshot(links, tags, preselected, blacklisted, properties);
+        };
+
+        Cache cache = itemCache;
+        String key = itemKey(id);
+        ItemSnapshot snapshot =
+                (ItemSnapshot) (cache == null ? coalesce(key, fetch) : cached(cache, key, fetch));
+        TagIndex index = tagIndex;
+
+        if(index != null)
+        {
+            index.setTags(id, snapshot.tags());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Runs a query which returns a list of item IDs, using the query cache if
+     * one is attached.
+     */
+    @SuppressWarnings("unchecked")
+    List<String> readList(final List<String> resources, final Map<String, Object> options,
+            final String element) throws ResourceException
+    {
+        TagIndex index = tagIndex;
+        Cache cache = queryCache;
+
+        if(index != null && cache != null)
+        {
+            List<String> filtered =
+                    readFromTagIndex(index, cache, resources, options, element);
+
+            if(filtered != null)
+            {
+                return filtered;
+            }
+        }
+
+        final BatchLoader loader = batchLoader;
+        final Map<String, Object> query = withoutLongExclusions(options);
+        Request<List<String>> fetch;
+
+        if(loader != null && batched(resources, element))
+        {
+            fetch = () -> await(loader.load(element, resources.get(1), query));
+        }
+        else
+        {
+            fetch = () -> get(resources, query, Parser.list(element));
+        }
+
+        String key = url(resources, options);
+
+        // The fetched list may be shared with other callers, so each gets a copy.
+
+        List<String> results = new ArrayList<String>((List<String>)
+                (cache == null ? coalesce(key, fetch) : cached(cache, key, fetch)));
+
+        return query == options ? results : excluding(results, options, (String id) -> id);
+    }
+
+    /**
+     * Asynchronous version of readList().  Queries which are batched complete
+     * with the batch, rather than holding an executor thread while they wait
+     * for it.
+     */
+    @SuppressWarnings("unchecked")
+    CompletableFuture<List<String>> readListAsync(final List<String> resources,
+            final Map<String, Object> options, final String element)
+    {
+        final BatchLoader loader = batchLoader;
+        final Cache cache = queryCache;
+
+        if(loader == null || !batched(resources, element) ||
+                withoutLongExclusions(options) != options ||
+                (tagIndex != null && cache != null))
+        {
+            return submit(() -> readList(resources, options, element));
+        }
+
+        CompletableFuture<List<String>> results;
+
+        if(cache == null)
+        {
+            results = loader.load(element, resources.get(1), options);
+        }
+        else
+        {
+            final String key = url(resources, options);
+            Object value = lookup(cache, key,
+                    () -> await(loader.load(element, resources.get(1), options)));
+
+            if(value != null)
+            {
+                return CompletableFuture.completedFuture(
+                        new ArrayList<String>((List<String>) value));
+            }
+
+            final long generation = cache.startFetch(key);
+
+            results = loader.load(element, resources.get(1), options).whenComplete(
+                    (List<String> fetched, Throwable error) ->
+            {
+                if(error == null)
+                {
+                    cache.put(key, fetched, weight(fetched), generation);
+                }
+
+                cache.endFetch(key);
+            });
+        }
+
+        return results.thenApply((List<String> value) -> new ArrayList<String>(value));
+    }
+
+    /**
+     * Reads query results with their properties, sharing the query cache with
+     * readList().
+     */
+    @SuppressWarnings("unchecked")
+    List<Recommendation> readRecommendations(final List<String> resources,
+            final Map<String, Object> options, final String element)
+            throws ResourceException
+    {
+        final Map<String, Object> query = withoutLongExclusions(options);
+        Request<List<Recommendation>> fetch =
+                () -> get(resources, query, Parser.recommendations(element));
+        Cache cache = queryCache;
+        String key = url(resources, options);
+
+        List<Recommendation> results = new ArrayList<Recommendation>((List<Recommendation>)
+                (cache == null ? coalesce(key, fetch) : cached(cache, key, fetch)));
+
+        return query == options ? results :
+                excluding(results, options, (Recommendation result) -> result.getId());
+    }
+
+    /**
+     * Runs a related or recommended query for several items at once.  The
+     * items are sent in groups that keep the URL to a reasonable length, and
+     * items in groups the server rejects are queried one at a time.
+     *
+     * @param failures A map which receives the error for each item which could
+     * not be queried, which is then left out of the results.  If null, errors
+     * are logged and those items are given empty lists.
+     */
+    Map<String, List<String>> readLists(final String resource,
+            Collection<String> items, final Map<String, Object> options,
+            Map<String, ResourceException> failures)
+    {
+        final Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+        List<List<String>> groups = new ArrayList<List<String>>();
+        List<String> group = new ArrayList<String>();
+        int length = 0;
+
+        for(String id : items)
+        {
+            results.put(id, new ArrayList<String>());
+
+            if(!group.isEmpty() && length + id.length() > MAX_QUERY_LENGTH)
+            {
+                groups.add(group);
+                group = new ArrayList<String>();
+                length = 0;
+            }
+
+            group.add(id);
+            length += id.length() + 1;
+        }
+
+        if(!group.isEmpty())
+        {
+            groups.add(group);
+        }
+
+        List<Request<Map<String, List<String>>>> batches =
+                new ArrayList<Request<Map<String, List<String>>>>();
+
+        for(final List<String> ids : groups)
+        {
+            batches.add(() ->
+            {
+                Map<String, Object> batchOptions = new HashMap<String, Object>(options);
+                batchOptions.put("items", StringUtils.join(ids, ','));
+                return get(Arrays.asList(resource), batchOptions,
+                        Parser.itemLists(resource));
+            });
+        }
+
+        List<String> unanswered = new ArrayList<String>();
+        List<CompletableFuture<Map<String, List<String>>>> batchResults = fanOut(batches);
+
+        for(int i = 0; i < groups.size(); i++)
+        {
+            try
+            {
+                results.putAll(batchResults.get(i).join());
+            }
+            catch (CompletionException ex)
+            {
+                unanswered.addAll(groups.get(i));
+            }
+        }
+
+        List<Request<List<String>>> singles = new ArrayList<Request<List<String>>>();
+
+        for(final String id : unanswered)
+        {
+            // These bypass readList(), since a batch may be answering callers
+            // which are already waiting there for the same results.
+
+            singles.add(() -> get(Arrays.asList("items", id, resource),
+                    new HashMap<String, Object>(options), Parser.list(resource)));
+        }
+
+        List<CompletableFuture<List<String>>> singleResults = fanOut(singles);
+
+        for(int i = 0; i < unanswered.size(); i++)
+        {
+            try
+            {
+                results.put(unanswered.get(i), singleResults.get(i).join());
+            }
+            catch (CompletionException ex)
+            {
+                if(!(ex.getCause() instanceof ResourceException))
+                {
+                    throw ex;
+                }
+
+                if(failures == null)
+                {
+                    Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null,
+                            ex.getCause());
+                }
+                else
+                {
+                    failures.put(unanswered.get(i), (ResourceException) ex.getCause());
+                    results.remove(unanswered.get(i));
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Queues the item's changes if write-behind saves are enabled.
+     *
+     * @return Whether the changes were queued.
+     */
+    boolean saveLater(Item item)
+    {
+        WriteBehind queue = writeBehind;
+
+        if(queue == null)
+        {
+            return false;
+        }
+
+        queue.save(item);
+        return true;
+    }
+
+    /**
+     * Writes any queued changes to the item, so that they land before a
+     * direct write of it.
+     */
+    void flushWrites(String id) throws ResourceException
+    {
+        WriteBehind queue = writeBehind;
+
+        if(queue != null)
+        {
+            queue.flush(id);
+        }
+    }
+
+    /**
+     * Records the state of an item after it was written, or drops it from the
+     * item cache if snapshot is null.
+     */
+    void itemChanged(String id, ItemSnapshot snapshot)
+    {
+        // A read which is already in flight may have started before the
+        // write, so later reads must not wait for it.
+
+        inFlight.remove(itemKey(id));
+
+        Cache cache = itemCache;
+
+        if(cache == null)
+        {
+            return;
+        }
+
+        if(snapshot == null)
+        {
+            cache.invalidate(itemKey(id));
+        }
+        else
+        {
+            cache.put(itemKey(id), snapshot, snapshot.weight());
+        }
+    }
+
+    synchronized Executor executor()
+    {
+        if(executor == null)
+        {
+            defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Directed Edge request");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor = defaultExecutor;
+        }
+
+        return executor;
+    }
+
+    <T> CompletableFuture<T> submit(final Request<T> request)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        executor().execute(() ->
+        {
+            try
+            {
+                future.complete(request.run());
+            }
+            catch (ResourceException | RuntimeException ex)
+            {
+                future.completeExceptionally(ex);
+            }
+        });
+
+        return future;
+    }
+
+    private void upload(Method method, List<String> resources, Map<String, Object> options, HttpEntity entity) throws ResourceException
+    {
+        HttpEntityEnclosingRequestBase request;
+
+        if(method == Method.PUT)
+        {
+            request = new HttpPut(url(resources, options));
+        }
+        else if(method == Method.POST)
+        {
+            request = new HttpPost(url(resources, options));
+        }
+        else
+        {
+            throw new IllegalArgumentException();
+        }
+
+        prepare(request);
+
+        if(compressUploads && entity.getContentEncoding() == null)
+        {
+            entity = new GzipCompressingEntity(entity);
+        }
+
+        request.setEntity(entity);
+
+        try
+        {
+            requests.incrementAndGet();
+            HttpResponse response = client.execute(request);
+            checkResponseCode(method, resources, options, response);
+            EntityUtils.consume(response.getEntity());
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+            throw new ResourceException(method, url(resources, options));
+        }
+    }
+
+    private String itemKey(String id)
+    {
+        return url(Arrays.asList("items", id), null);
+    }
+
+    /**
+     * Looks up a value in a cache, fetching and storing it if it is missing or
+     * expired, and starting a background refresh if it is due for one.
+     */
+    private Object cached(Cache cache, String key, Request<?> fetch)
+            throws ResourceException
+    {
+        Object value = lookup(cache, key, fetch);
+        return value != null ? value : fetch(cache, key, fetch);
+    }
+
+    /**
+     * Looks up a value in a cache, starting a background refresh if it is due
+     * for one.
+     *
+     * @return The cached value, or null if it is missing or expired.
+     */
+    private Object lookup(final Cache cache, final String key, final Request<?> fetch)
+    {
+        Object value = cache.get(key);
+
+        if(value != null && cache.startRefresh(key))
+        {
+            executor().execute(() ->
+            {
+                try
+                {
+                    fetch(cache, key, fetch);
+                }
+                catch (ResourceException | RuntimeException ex)
+                {
+                    cache.refreshFailed(key);
+                }
+            });
+        }
+
+        return value;
+    }
+
+    /**
+     * Fetches a value and stores it in the cache, unless the key was written
+     * or invalidated while the request was in flight.  Only requests started
+     * since the key's last change are shared, so that a read which began
+     * before one of our own writes is not stored over it.
+     */
+    private Object fetch(Cache cache, String key, Request<?> fetch)
+            throws ResourceException
+    {
+        long generation = cache.startFetch(key);
+
+        try
+        {
+            Object value = coalesce(key + "#" + generation, fetch);
+            cache.put(key, value, weight(value), generation);
+            return value;
+        }
+        finally
+        {
+            cache.endFetch(key);
+        }
+    }
+
+    /**
+     * @return True if the query is for related items of a single item, which
+     * can be sent in a batch.
+     */
+    private static boolean batched(List<String> resources, String element)
+    {
+        return element.equals("related") && resources.size() == 3 &&
+                resources.get(0).equals("items") && resources.get(2).equals(element);
+    }
+
+    /**
+     * Answers a tagged query by filtering the untagged results for the same
+     * item and options through the tag index.
+     *
+     * Unless the index is complete, this is only tried when the untagged
+     * results are already cached, since an index filled from reads is usually
+     * missing some of them and the query would then cost two requests.
+     *
+     * @return The filtered results, or null if the query has to be sent to the
+     * server, e.g. because some results are not in the index or too few of the
+     * untagged results have the tags.
+     */
+    private List<String> readFromTagIndex(TagIndex index, Cache cache,
+            List<String> resources, Map<String, Object> options, String element)
+            throws ResourceException
+    {
+        List<String> tags = listOption(options, "tags");
+
+        if(tags.isEmpty() || options.containsKey("excludedTags"))
+        {
+            return null;
+        }
+
+        int maxResults = maxResults(options);
+        int untaggedResults = Math.max(maxResults, TAG_INDEX_RESULTS);
+        Map<String, Object> untagged = new HashMap<String, Object>(options);
+        untagged.remove("tagOperation");
+        untagged.put("tags", "");
+        untagged.put("maxResults", untaggedResults);
+
+        if(!index.isComplete() && !cache.contains(url(resources, untagged)))
+        {
+            return null;
+        }
+
+        List<String> candidates = readList(resources, untagged, element);
+        List<String> filtered = index.filter(candidates, new HashSet<String>(tags),
+                "AND".equalsIgnoreCase(String.valueOf(options.get("tagOperation"))),
+                maxResults);
+
+        // If the untagged list was cut off, items further down could have
+        // filled out the tagged results.
+
+        if(filtered == null ||
+                (filtered.size() < maxResults && candidates.size() >= untaggedResults))
+        {
+            return null;
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Lists of excluded items which would make the URL too long are left out
+     * of the query.  Instead enough extra results are requested to make up for
+     * the excluded items, which are then removed by excluding().
+     *
+     * @return The options to send, which are the original options if they can
+     * be sent unchanged.
+     */
+    private static Map<String, Object> withoutLongExclusions(Map<String, Object> options)
+    {
+        List<String> excluded = listOption(options, "excluded");
+
+        if(StringUtils.join(excluded, ',').length() <= MAX_QUERY_LENGTH)
+        {
+            return options;
+        }
+
+        Map<String, Object> query = new HashMap<String, Object>(options);
+        query.remove("excluded");
+        query.put("maxResults", maxResults(options) + excluded.size());
+        return query;
+    }
+
+    private static <T> List<T> excluding(List<T> results, Map<String, Object> options,
+            Function<T, String> id)
+    {
+        Set<String> excluded = new HashSet<String>(listOption(options, "excluded"));
+        int maxResults = maxResults(options);
+        List<T> filtered = new ArrayList<T>();
+
+        for(T result : results)
+        {
+            if(filtered.size() >= maxResults)
+            {
+                break;
+            }
+
+            if(!excluded.contains(id.apply(result)))
+            {
+                filtered.add(result);
+            }
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Reads an option which holds a list, either as a collection or as a comma
+     * separated string.
+     */
+    private static List<String> listOption(Map<String, Object> options, String name)
+    {
+        Object value = options.get(name);
+        List<String> items = new ArrayList<String>();
+
+        if(value instanceof Collection)
+        {
+            for(Object item : (Collection<?>) value)
+            {
+                items.add(item.toString());
+            }
+        }
+        else if(value != null && !value.toString().isEmpty())
+        {
+            items.addAll(Arrays.asList(value.toString().split(",")));
+        }
+
+        return items;
+    }
+
+    private static int maxResults(Map<String, Object> options)
+    {
+        Object maxResults = options.get("maxResults");
+        return maxResults == null ? 20 : Integer.parseInt(maxResults.toString());
+    }
+
+    /**
+     * Runs requests in parallel with no more in flight at once than the
+     * connection pool allows for the server.  The calling thread works through
+     * the requests along with helpers on the executor, so that waiting for the
+     * results never depends on a free executor thread, even when this is
+     * called from one.
+     *
+     * @return A future for each request, in order.  Requests which are still
+     * running on other threads may not have completed yet.
+     */
+    <T> List<CompletableFuture<T>> fanOut(final List<Request<T>> requests)
+    {
+        final List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+
+        for(int i = 0; i < requests.size(); i++)
+        {
+            futures.add(new CompletableFuture<T>());
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = () ->
+        {
+            for(int i = next.getAndIncrement(); i < requests.size(); i = next.getAndIncrement())
+            {
+                try
+                {
+                    futures.get(i).complete(requests.get(i).run());
+                }
+                catch (ResourceException | RuntimeException ex)
+                {
+                    futures.get(i).completeExceptionally(ex);
+                }
+            }
+        };
+
+        int helpers = Math.min(requests.size(), connectionManager.getDefaultMaxPerRoute()) - 1;
+
+        for(int i = 0; i < helpers; i++)
+        {
+            executor().execute(worker);
+        }
+
+        worker.run();
+        return futures;
+    }
+
+    /**
+     * Runs fetch unless a request with the same key is already in flight, in
+     * which case this waits for that request and returns its result.
+     */
+    private Object coalesce(String key, Request<?> fetch) throws ResourceException
+    {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+
+        if(existing != null)
+        {
+            try
+            {
+                return existing.join();
+            }
+            catch (CompletionException ex)
+            {
+                if(ex.getCause() instanceof ResourceException)
+                {
+                    throw (ResourceException) ex.getCause();
+                }
+                if(ex.getCause() instanceof Error)
+                {
+                    throw (Error) ex.getCause();
+                }
+                throw (RuntimeException) ex.getCause();
+            }
+        }
+
+        try
+        {
+            Object value = fetch.run();
+            future.complete(value);
+            return value;
+        }
+        catch (Throwable ex)
+        {
+            // Waiting callers must be released whatever went wrong.
+
+            future.completeExceptionally(ex);
+            throw ex;
+        }
+        finally
+        {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Waits for a future, rethrowing a ResourceException it failed with.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws ResourceException
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException ex)
+        {
+            if(ex.getCause() instanceof ResourceException)
+            {
+                throw (ResourceException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long weight(Object value)
+    {
+        if(value instanceof ItemSnapshot)
+        {
+            return ((ItemSnapshot) value).weight();
+        }
+
+        long weight = 64;
+
+        for(Object entry : (List<Object>) value)
+        {
+            weight += entry instanceof Recommendation ? ((Recommendation) entry).weight() :
+                    64 + 2 * ((String) entry).length();
+        }
+
+        return weight;
+    }
+
+    private void prepare(HttpRequestBase request)
+    {
+        request.setConfig(requestConfig);
+
+        try
+        {
+            request.addHeader(new BasicScheme(StandardCharsets.US_ASCII).authenticate(
+                    credentials, request, null));
+        }
+        catch (AuthenticationException ex)
+        {
+            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private String url(List<String> resources, Map<String, Object> options)
+    {
+        try
+        {
+            resources = new ArrayList<String>(resources);
+
+            for(int i = 0; i < resources.size(); i++)
+            {
+                resources.set(i, encode(resources.get(i)));
+            }
+
+            URL url = new URL(String.format("%s://%s/api/v1/%s/%s%s",
+                    protocol.toString().toLowerCase(),
+                    host,
+                    name,
+                    StringUtils.join(resources, '/'),
+                    queryString(options)));
+
+            return url.toString();
+        }
+        catch (MalformedURLException ex)
+        {
+            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            Logger.getLogger(Database.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    private void checkResponseCode(Method method, List<String> resources,
+            Map<String, Object> options, HttpResponse response)
+            throws ResourceException, IOException
+    {
+        int code = response.getStatusLine().getStatusCode();
 
         if(code != 200)
         {
@@ -357,11 +1788,23 @@ public class Database
             return "";
         }
 
+        // Parameters are sorted so that equivalent queries have the same URL,
+        // which is also used as the key for cached queries.  Collections, e.g.
+        // of excluded items, are sent as comma separated lists.
+
         ArrayList<String> pairs = new ArrayList<String>();
+        TreeMap<String, Object> sorted = new TreeMap<String, Object>(options);
 
-        for(String key : options.keySet())
+        for(String key : sorted.keySet())
         {
-            pairs.add(encode(key) + "=" + encode(options.get(key)));
+            Object value = sorted.get(key);
+
+            if(value instanceof Collection)
+            {
+                value = StringUtils.join((Collection<?>) value, ',');
+            }
+
+            pairs.add(encode(key) + "=" + encode(value));
         }
 
         return pairs.size() > 0 ? "?" + StringUtils.join(pairs, "&") : "";
@@ -371,4 +1814,54 @@ public class Database
     {
         return URLEncoder.encode(s.toString(), "UTF-8");
     }
+
+    private class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        private final ConnectionKeepAliveStrategy server =
+                new DefaultConnectionKeepAliveStrategy();
+
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            long duration = server.getKeepAliveDuration(response, context);
+            return duration < 0 ? keepAlive : duration;
+        }
+    }
+
+    private class IdleConnectionMonitor extends Thread
+    {
+        private final long timeout;
+        private volatile boolean running = true;
+
+        IdleConnectionMonitor(long timeout)
+        {
+            super("Directed Edge idle connection monitor");
+            this.timeout = timeout;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try
+                {
+                    Thread.sleep(Math.min(timeout, 5000));
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void shutdown()
+        {
+            running = false;
+            interrupt();
+        }
+    }
 }
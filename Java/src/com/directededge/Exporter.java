@@ -100,7 +100,8 @@ public class Exporter
     {
         try
         {
-            output.write(item.toXML(method(), false) + "\n");
+            item.toXML(output, method(), false);
+            output.write('\n');
         }
         catch (IOException ex)
         {
@@ -125,6 +126,14 @@ public class Exporter
         }
     }
 
+    /**
+     * Pushes any buffered output through to the underlying writer.
+     */
+    protected void flush() throws IOException
+    {
+        output.flush();
+    }
+
     final protected void begin(Database database, Writer writer)
     {
         this.database = database;
@@ -25,36 +25,24 @@
 
 package com.directededge;
 
+import com.directededge.Database.Request;
 import com.directededge.Database.ResourceException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.apache.commons.lang3.StringUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  *  An item in a Directed Edge database
@@ -63,22 +51,28 @@ import org.xml.sax.SAXException;
  * In general as few reads from the remote database as required will be used,
  * specifically items cache all values when any of them are read and writes
  * will not be made to the remote database until save() is called.
+ *
+ * The asynchronous query methods run on the database's executor, so that
+ * several queries for a page can be in flight at the same time.  Items are not
+ * otherwise safe to modify from several threads at once.
  */
 public class Item
 {
     private Database database;
     private String id;
     private boolean isCached;
+    private ItemSnapshot snapshot;
     private Map<String, Map<String, Integer>> links;
     private Set<String> tags;
+    private Set<String> preselected;
+    private Set<String> blacklisted;
     private Map<String, String> properties;
     private Map<String, Set<String>> linksToRemove;
     private Set<String> tagsToRemove;
+    private Set<String> preselectedToRemove;
+    private Set<String> blacklistedToRemove;
     private Set<String> propertiesToRemove;
 
-    private final DocumentBuilderFactory documentBuilderFactory =
-            DocumentBuilderFactory.newInstance();
-
     /**
      * Creates a reference to an item in the Directed Edge database.
      * If the item does not exist it will be created when save() is called.
@@ -95,9 +89,13 @@ public class Item
         isCached = false;
         links = new HashMap<String, Map<String, Integer>>();
         tags = new HashSet<String>();
+        preselected = new LinkedHashSet<String>();
+        blacklisted = new LinkedHashSet<String>();
         properties = new HashMap<String, String>();
         linksToRemove = new HashMap<String, Set<String>>();
         tagsToRemove = new HashSet<String>();
+        preselectedToRemove = new HashSet<String>();
+        blacklistedToRemove = new HashSet<String>();
         propertiesToRemove = new HashSet<String>();
     }
 
@@ -373,6 +371,106 @@ public class Item
         }
     }
 
+    /**
+     * Gets the items which are always included at the top of related and
+     * recommended results for this item, in the order they were added.
+     *
+     * @return The set of preselected item IDs.  This set should not be
+     * modified directly.
+     * @see #addPreselected(java.lang.String)
+     * @see #removePreselected(java.lang.String)
+     */
+    public Set<String> getPreselected()
+    {
+        read();
+        return preselected;
+    }
+
+    /**
+     * Adds an item which should always be included in related and recommended
+     * results for this item.  The changes are not saved to the database until
+     * save() is called.
+     *
+     * @param other The ID of another item in the database.
+     * @see #removePreselected(java.lang.String)
+     * @see #getPreselected()
+     */
+    public void addPreselected(String other)
+    {
+        preselected.add(other);
+        preselectedToRemove.remove(other);
+    }
+
+    /**
+     * Removes an item from the preselected items.  The changes are not saved
+     * to the database until save() is called.
+     *
+     * @param other The ID of another item in the database.
+     * @see #addPreselected(java.lang.String)
+     * @see #getPreselected()
+     */
+    public void removePreselected(String other)
+    {
+        if(isCached)
+        {
+            preselected.remove(other);
+        }
+        else
+        {
+            preselectedToRemove.add(other);
+        }
+    }
+
+    /**
+     * Gets the items which are never included in related and recommended
+     * results for this item.
+     *
+     * @return The set of blacklisted item IDs.  This set should not be
+     * modified directly.
+     * @see #addBlacklisted(java.lang.String)
+     * @see #removeBlacklisted(java.lang.String)
+     */
+    public Set<String> getBlacklisted()
+    {
+        read();
+        return blacklisted;
+    }
+
+    /**
+     * Adds an item which should never be included in related and recommended
+     * results for this item.  The changes are not saved to the database until
+     * save() is called.
+     *
+     * @param other The ID of another item in the database.
+     * @see #removeBlacklisted(java.lang.String)
+     * @see #getBlacklisted()
+     */
+    public void addBlacklisted(String other)
+    {
+        blacklisted.add(other);
+        blacklistedToRemove.remove(other);
+    }
+
+    /**
+     * Removes an item from the blacklisted items.  The changes are not saved
+     * to the database until save() is called.
+     *
+     * @param other The ID of another item in the database.
+     * @see #addBlacklisted(java.lang.String)
+     * @see #getBlacklisted()
+     */
+    public void removeBlacklisted(String other)
+    {
+        if(isCached)
+        {
+            blacklisted.remove(other);
+        }
+        else
+        {
+            blacklistedToRemove.add(other);
+        }
+    }
+
     /**
      * Returns a map of key-value pairs for the properties for this item.
      *
@@ -475,9 +573,10 @@ public class Item
     public List<String> getRelated(Set<String> tags, int maxResults)
     {
         HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("tags", StringUtils.join(tags, ','));
         options.put("maxResults", maxResults);
         options.put("excludeLinked", false);
-        return readList(document(resource("related"), options), "related");
+        return readList(resource("related"), options, "related");
     }
 
     /**
@@ -489,12 +588,14 @@ public class Item
      * in the result set.
      * @param options A set of options that will be passed on to the web services
      * API. Options include "popularity", "excludeLinked", "maxResults", etc.
+     * Items listed in "excluded", either as a collection of IDs or as a comma
+     * separated string, are left out of the results.
      * @return A list of item IDs with one or more of the given tags.
      */
     public List<String> getRelated(Set<String> tags, Map<String, Object> options)
     {
         options.put("tags", StringUtils.join(tags, ','));
-        return readList(document(resource("related"), options), "related");
+        return readList(resource("related"), options, "related");
     }
 
     /**
@@ -542,7 +643,7 @@ public class Item
         options.put("tags", StringUtils.join(tags, ','));
         options.put("maxResults", maxResults);
         options.put("excludeLinked", true);
-        return readList(document(resource("recommended"), options), "recommended");
+        return readList(resource("recommended"), options, "recommended");
     }
 
     /**
@@ -559,42 +660,270 @@ public class Item
     public List<String> getRecommended(Set<String> tags, Map<String, Object> options)
     {
         options.put("tags", StringUtils.join(tags, ','));
-        return readList(document(resource("recommended"), options), "recommended");
+        return readList(resource("recommended"), options, "recommended");
+    }
+
+    /**
+     * A list of similar items along with their properties, which are returned
+     * in the same response as the results.
+     *
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param maxResults The maximum number of items to return.
+     * @return A list of results with one or more of the given tags.
+     * @see #getRelated(java.util.Set, int)
+     */
+    public List<Recommendation> getRelatedWithProperties(Set<String> tags, int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", false);
+        return getRelatedWithProperties(tags, options);
+    }
+
+    /**
+     * A list of similar items along with their properties.
+     *
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param options A set of options that will be passed on to the web services
+     * API, as with getRelated().
+     * @return A list of results with one or more of the given tags.
+     * @see #getRelated(java.util.Set, java.util.Map)
+     */
+    public List<Recommendation> getRelatedWithProperties(Set<String> tags,
+            Map<String, Object> options)
+    {
+        options.put("tags", StringUtils.join(tags, ','));
+        options.put("includeProperties", true);
+        return readRecommendations(resource("related"), options, "related");
+    }
+
+    /**
+     * A list of items recommended for this item along with their properties,
+     * which are returned in the same response as the results.
+     *
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param maxResults The maximum number of items to return.
+     * @return A list of results with one or more of the given tags.
+     * @see #getRecommended(java.util.Set, int)
+     */
+    public List<Recommendation> getRecommendedWithProperties(Set<String> tags,
+            int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", true);
+        return getRecommendedWithProperties(tags, options);
+    }
+
+    /**
+     * A list of items recommended for this item along with their properties.
+     *
+     * @param tags Items which contain any of the specified tags will be allowed
+     * in the result set.
+     * @param options A set of options that will be passed on to the web services
+     * API, as with getRecommended().
+     * @return A list of results with one or more of the given tags.
+     * @see #getRecommended(java.util.Set, java.util.Map)
+     */
+    public List<Recommendation> getRecommendedWithProperties(Set<String> tags,
+            Map<String, Object> options)
+    {
+        options.put("tags", StringUtils.join(tags, ','));
+        options.put("includeProperties", true);
+        return readRecommendations(resource("recommended"), options, "recommended");
     }
 
     /**
-     * Saves all changes made to the item back to the database.
+     * Asynchronous version of getLinks().
+     *
+     * @return A future which completes with the links for the item.
+     * @see #getLinks()
+     */
+    public CompletableFuture<Map<String, Map<String, Integer>>> getLinksAsync()
+    {
+        return database.submit(() -> getLinks());
+    }
+
+    public CompletableFuture<Map<String, Integer>> getLinksAsync(final String linkType)
+    {
+        return database.submit(() -> getLinks(linkType));
+    }
+
+    /**
+     * Asynchronous version of getTags().
+     *
+     * @return A future which completes with the set of tags on this item.
+     * @see #getTags()
+     */
+    public CompletableFuture<Set<String>> getTagsAsync()
+    {
+        return database.submit(() -> getTags());
+    }
+
+    /**
+     * Asynchronous version of getProperties().
+     *
+     * @return A future which completes with the properties for this item.
+     * @see #getProperties()
+     */
+    public CompletableFuture<Map<String, String>> getPropertiesAsync()
+    {
+        return database.submit(() -> getProperties());
+    }
+
+    /**
+     * Asynchronous version of getRelated().
+     *
+     * @return A future which completes with a list of related item IDs.
+     * @see #getRelated()
+     */
+    public CompletableFuture<List<String>> getRelatedAsync()
+    {
+        return getRelatedAsync(new HashSet<String>());
+    }
+
+    public CompletableFuture<List<String>> getRelatedAsync(Set<String> tags)
+    {
+        return getRelatedAsync(tags, 20);
+    }
+
+    public CompletableFuture<List<String>> getRelatedAsync(Set<String> tags,
+            int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", false);
+        return getRelatedAsync(tags, options);
+    }
+
+    public CompletableFuture<List<String>> getRelatedAsync(Set<String> tags,
+            Map<String, Object> options)
+    {
+        options.put("tags", StringUtils.join(tags, ','));
+        return readListAsync(resource("related"), options, "related");
+    }
+
+    /**
+     * Asynchronous version of getRecommended().
+     *
+     * @return A future which completes with a list of recommended item IDs.
+     * @see #getRecommended()
+     */
+    public CompletableFuture<List<String>> getRecommendedAsync()
+    {
+        return getRecommendedAsync(new HashSet<String>());
+    }
+
+    public CompletableFuture<List<String>> getRecommendedAsync(Set<String> tags)
+    {
+        return getRecommendedAsync(tags, 20);
+    }
+
+    public CompletableFuture<List<String>> getRecommendedAsync(Set<String> tags,
+            int maxResults)
+    {
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", maxResults);
+        options.put("excludeLinked", true);
+        return getRecommendedAsync(tags, options);
+    }
+
+    public CompletableFuture<List<String>> getRecommendedAsync(Set<String> tags,
+            Map<String, Object> options)
+    {
+        options.put("tags", StringUtils.join(tags, ','));
+        return readListAsync(resource("recommended"), options, "recommended");
+    }
+
+    /**
+     * Saves all changes made to the item back to the database.  Errors are
+     * logged; use commit() to handle them instead.  If the database has
+     * write-behind saves enabled, the changes are queued instead.
+     *
+     * @see #commit()
+     * @see Database#setWriteBehind(long, int)
      */
     public void save()
     {
+        if(database.saveLater(this))
+        {
+            return;
+        }
+
         try
         {
-            if(isCached)
+            commit();
+        }
+        catch (ResourceException ex)
+        {
+            Logger.getLogger(Item.class.getName()).log(Level.SEVERE,
+                    null, ex);
+        }
+    }
+
+    /**
+     * Saves all changes made to the item back to the database.  Additions and
+     * removals are sent at the same time as two requests which do not overlap,
+     * so the save takes a single round trip.  For items which have been read,
+     * only the differences from the item as it was read are sent.
+     *
+     * @throws ResourceException If any of the changes were not accepted.  The
+     * item on the server may then be partially updated.
+     */
+    public void commit() throws ResourceException
+    {
+        // Older changes to this item which were queued by save() must not land
+        // after these.
+
+        database.flushWrites(id);
+
+        try
+        {
+            if(isCached && snapshot != null)
+            {
+                post(changesXML(true), changesXML(false));
+                snapshot = ItemSnapshot.copyOf(links, tags, preselected, blacklisted,
+                        properties);
+                database.itemChanged(id, snapshot);
+            }
+            else if(isCached)
             {
                 database.put(resource(), toXML(Updater.Method.Replace, true));
+                snapshot = ItemSnapshot.copyOf(links, tags, preselected, blacklisted,
+                        properties);
+                database.itemChanged(id, snapshot);
             }
             else
             {
-                database.post(resource(), toXML(Updater.Method.Add, true),
-                        options(Updater.Method.Add));
-
-                if(subtractionNeeded())
-                {
-                    database.post(resource(), toXML(Updater.Method.Subtract, true),
-                            options(Updater.Method.Subtract));
-                }
+                post(additionsXML(),
+                        subtractionNeeded() ? toXML(Updater.Method.Subtract, true) : null);
+                database.itemChanged(id, null);
             }
+
+            updateTagIndex(true);
         }
         catch (ResourceException ex)
         {
-            Logger.getLogger(Item.class.getName()).log(Level.SEVERE,
-                    null, ex);
+            database.itemChanged(id, null);
+            updateTagIndex(false);
+            throw ex;
         }
     }
 
     public void destroy() throws ResourceException
     {
-        database.delete(resource());
+        try
+        {
+            database.delete(resource());
+        }
+        finally
+        {
+            database.itemChanged(id, null);
+            updateTagIndex(false);
+        }
     }
 
     /**
@@ -604,10 +933,36 @@ public class Item
      * @return An XML representation of the item.
      */
     public String toXML(Updater.Method method, boolean includeDocument)
+    {
+        StringWriter writer = new StringWriter();
+
+        try
+        {
+            toXML(writer, method, includeDocument);
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Item.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        return writer.toString();
+    }
+
+    /**
+     * Writes an XML representation of this item, which can be sent to the
+     * server, directly to writer.
+     *
+     * @param writer The destination for the XML.
+     * @throws IOException If writing to writer fails.
+     * @see #toXML(com.directededge.Updater.Method, boolean)
+     */
+    public void toXML(Writer writer, Updater.Method method, boolean includeDocument)
+            throws IOException
     {
         if(method == Updater.Method.Add || method == Updater.Method.Replace)
         {
-            return toXML(tags, links, properties, false);
+            toXML(writer, tags, links, preselected, blacklisted, properties, false);
+            return;
         }
 
         HashMap<String, Map<String, Integer>> linkMap =
@@ -633,7 +988,8 @@ public class Item
             propertyMap.put(property, "");
         }
 
-        return toXML(tagsToRemove, linkMap, propertyMap, includeDocument);
+        toXML(writer, tagsToRemove, linkMap, preselectedToRemove, blacklistedToRemove,
+                propertyMap, includeDocument);
     }
 
     private List<String> resource(String... args)
@@ -650,205 +1006,456 @@ public class Item
         return options;
     }
 
-    private boolean subtractionNeeded()
+    /**
+     * Sends additions and removals, either of which may be null, concurrently
+     * and waits for both.  The calling thread sends one of them itself, so
+     * this is safe to call from an executor thread.
+     */
+    private void post(String additions, String removals) throws ResourceException
     {
-        return (!linksToRemove.isEmpty() ||
-                !tagsToRemove.isEmpty() ||
-                !propertiesToRemove.isEmpty());
-    }
+        List<Request<Void>> requests = new ArrayList<Request<Void>>();
 
-    private String toXML(Set<String> tags, Map<String, Map<String, Integer>> links,
-            Map<String, String> properties, boolean includeDocument)
-    {
-        try
+        if(additions != null)
         {
-            Document doc = documentBuilderFactory.newDocumentBuilder().newDocument();
-            Element root = doc.createElement("directededge");
-            root.setAttribute("version", "0.1");
-            Element itemElement = doc.createElement("item");
-            itemElement.setAttribute("id", id);
-
-            for(String tag : tags)
+            requests.add(() ->
             {
-                Element tagElement = doc.createElement("tag");
-                tagElement.setTextContent(tag);
-                itemElement.appendChild(tagElement);
-            }
+                database.post(resource(), additions, options(Updater.Method.Add));
+                return null;
+            });
+        }
 
-            for(String linkType : links.keySet())
+        if(removals != null)
+        {
+            requests.add(() ->
             {
-                Map<String, Integer> linkMap = links.get(linkType);
+                database.post(resource(), removals, options(Updater.Method.Subtract));
+                return null;
+            });
+        }
 
-                for(String linkName : linkMap.keySet())
+        ResourceException error = null;
+
+        for(CompletableFuture<Void> result : database.fanOut(requests))
+        {
+            try
+            {
+                result.join();
+            }
+            catch (CompletionException ex)
+            {
+                if(!(ex.getCause() instanceof ResourceException))
                 {
-                    Element linkElement = doc.createElement("link");
-                    linkElement.setTextContent(linkName);
+                    throw ex;
+                }
 
-                    if(linkType != null && !linkType.isEmpty())
-                    {
-                        linkElement.setAttribute("type", linkType);
-                    }
+                error = error != null ? error : (ResourceException) ex.getCause();
+            }
+        }
 
-                    if(linkMap.get(linkName) > 0)
-                    {
-                        linkElement.setAttribute("weight", linkMap.get(linkName).toString());
-                    }
+        if(error != null)
+        {
+            throw error;
+        }
+    }
 
-                    itemElement.appendChild(linkElement);
-                }
-            }
+    /**
+     * The differences between the item and the snapshot it was read from,
+     * which are sent by a save of an item which has been read.
+     *
+     * @param additions Whether to write what was added or changed rather than
+     * what was removed.
+     * @return The changes, or null if there are none.
+     */
+    private String changesXML(boolean additions)
+    {
+        Item changes = changes(additions);
 
-            for(String key : properties.keySet())
-            {
-                Element propertyElement = doc.createElement("property");
-                propertyElement.setAttribute("name", key);
-                propertyElement.setTextContent(properties.get(key));
-                itemElement.appendChild(propertyElement);
-            }
+        if(changes.isEmpty())
+        {
+            return null;
+        }
 
-            root.appendChild(itemElement);
+        StringWriter writer = new StringWriter();
 
-            return includeDocument ? toString(root, false) : toString(itemElement, true);
+        try
+        {
+            toXML(writer, changes.tags, changes.links, changes.preselected,
+                    changes.blacklisted, changes.properties, !additions);
         }
-        catch (ParserConfigurationException ex)
+        catch (IOException ex)
         {
             Logger.getLogger(Item.class.getName()).log(Level.SEVERE, null, ex);
         }
 
-        return "";
+        return writer.toString();
     }
 
-    private void read()
+    /**
+     * Collects the differences between the item and the snapshot it was read
+     * from into the links, tags and properties of an otherwise empty item.
+     * Removed links and properties have a weight of zero and an empty value.
+     */
+    private Item changes(boolean additions)
     {
-        if(isCached)
-        {
-            return;
-        }
+        Item changes = new Item(database, id);
+        Map<String, Map<String, Integer>> before = additions ? snapshot.links() : links;
+        Map<String, Map<String, Integer>> after = additions ? links : snapshot.links();
 
-        Document doc = document(resource(), new HashMap<String, Object>());
-
-        NodeList nodes = doc.getElementsByTagName("link");
-        for(int i = 0; i < nodes.getLength(); i++)
+        for(String linkType : after.keySet())
         {
-            int weight = 0;
-            String linkType = "";
-
-            Node weightAttribute =
-                    nodes.item(i).getAttributes().getNamedItem("weight");
+            Map<String, Integer> previous = before.containsKey(linkType) ?
+                    before.get(linkType) : new HashMap<String, Integer>();
+            Map<String, Integer> changed = new HashMap<String, Integer>();
 
-            if(weightAttribute != null)
+            for(Map.Entry<String, Integer> link : after.get(linkType).entrySet())
             {
-                weight = Integer.parseInt(weightAttribute.getTextContent());
+                if(additions ? !link.getValue().equals(previous.get(link.getKey())) :
+                        !previous.containsKey(link.getKey()))
+                {
+                    changed.put(link.getKey(), additions ? link.getValue() : 0);
+                }
             }
 
-            Node typeAttribute =
-                    nodes.item(i).getAttributes().getNamedItem("type");
-
-            if(typeAttribute != null)
+            if(!changed.isEmpty())
             {
-                linkType = typeAttribute.getTextContent();
+                changes.links.put(linkType, changed);
             }
+        }
 
-            String target = nodes.item(i).getTextContent();
-
-            if(!links.containsKey(linkType))
+        if(additions)
+        {
+            for(Map.Entry<String, String> property : properties.entrySet())
             {
-                links.put(linkType, new HashMap<String, Integer>());
+                if(!snapshot.properties().containsKey(property.getKey()) ||
+                        !StringUtils.equals(property.getValue(),
+                                snapshot.properties().get(property.getKey())))
+                {
+                    changes.properties.put(property.getKey(), property.getValue());
+                }
             }
-
-            if(!links.get(linkType).containsKey(target))
+        }
+        else
+        {
+            for(String name : snapshot.properties().keySet())
             {
-                links.get(linkType).put(target, weight);
+                if(!properties.containsKey(name))
+                {
+                    changes.properties.put(name, "");
+                }
             }
         }
 
-        tags.addAll(readList(doc, "tag"));
+        changes.tags = additions ?
+                minus(tags, snapshot.tags()) : minus(snapshot.tags(), tags);
+        changes.preselected = additions ?
+                minus(preselected, snapshot.preselected()) :
+                minus(snapshot.preselected(), preselected);
+        changes.blacklisted = additions ?
+                minus(blacklisted, snapshot.blacklisted()) :
+                minus(snapshot.blacklisted(), blacklisted);
 
-        nodes = doc.getElementsByTagName("property");
-        for(int i = 0; i < nodes.getLength(); i++)
+        return changes;
+    }
+
+    private boolean isEmpty()
+    {
+        return links.isEmpty() && tags.isEmpty() && preselected.isEmpty() &&
+                blacklisted.isEmpty() && properties.isEmpty();
+    }
+
+    /**
+     * Moves the changes which a save would send into pending, an unread item
+     * which collects the changes to the same item from several saves.  Later
+     * changes take precedence over earlier ones.
+     */
+    synchronized void writeChangesTo(Item pending)
+    {
+        if(isCached && snapshot != null)
         {
-            Node node = nodes.item(i);
-            Node attribute = node.getAttributes().getNamedItem("name");
+            Item removals = changes(false);
+            Map<String, Set<String>> removedLinks = new HashMap<String, Set<String>>();
 
-            if(attribute != null &&
-               !properties.containsKey(attribute.getTextContent()))
+            for(String linkType : removals.links.keySet())
             {
-                properties.put(attribute.getTextContent(), node.getTextContent());
+                removedLinks.put(linkType, removals.links.get(linkType).keySet());
             }
+
+            addChanges(pending, changes(true));
+            removeChanges(pending, removedLinks, removals.tags, removals.preselected,
+                    removals.blacklisted, removals.properties.keySet());
+        }
+        else if(isCached)
+        {
+            addChanges(pending, this);
+        }
+        else
+        {
+            addChanges(pending, this);
+            removeChanges(pending, linksToRemove, tagsToRemove, preselectedToRemove,
+                    blacklistedToRemove, propertiesToRemove);
         }
 
-        isCached = true;
+        if(isCached)
+        {
+            snapshot = ItemSnapshot.copyOf(links, tags, preselected, blacklisted,
+                    properties);
+        }
     }
 
-    private Document document(List<String> resources, Map<String, Object> options)
+    private static void addChanges(Item pending, Item changes)
     {
-        try
+        for(String linkType : changes.links.keySet())
+        {
+            for(Map.Entry<String, Integer> link : changes.links.get(linkType).entrySet())
+            {
+                pending.linkTo(link.getKey(), link.getValue(), linkType);
+            }
+        }
+
+        for(String tag : changes.tags)
         {
-            DocumentBuilder builder =
-                    documentBuilderFactory.newDocumentBuilder();
+            pending.addTag(tag);
+        }
 
-            InputStream stream;
+        for(String other : changes.preselected)
+        {
+            pending.addPreselected(other);
+        }
 
-            try
+        for(String other : changes.blacklisted)
+        {
+            pending.addBlacklisted(other);
+        }
+
+        for(Map.Entry<String, String> property : changes.properties.entrySet())
+        {
+            pending.setProperty(property.getKey(), property.getValue());
+        }
+    }
+
+    private static void removeChanges(Item pending,
+            Map<String, Set<String>> links, Set<String> tags,
+            Set<String> preselected, Set<String> blacklisted, Set<String> properties)
+    {
+        for(String linkType : links.keySet())
+        {
+            for(String link : links.get(linkType))
             {
-                stream = new ByteArrayInputStream(database.get(resources, options).getBytes());
+                pending.unlinkFrom(link, linkType);
             }
-            catch (ResourceException ex)
+        }
+
+        for(String tag : tags)
+        {
+            pending.removeTag(tag);
+        }
+
+        for(String other : preselected)
+        {
+            pending.removePreselected(other);
+        }
+
+        for(String other : blacklisted)
+        {
+            pending.removeBlacklisted(other);
+        }
+
+        for(String property : properties)
+        {
+            pending.clearProperty(property);
+        }
+    }
+
+    /**
+     * The additions sent by a save of an unread item.  Anything which is also
+     * being removed is left out, so that the removals can be sent at the same
+     * time and the result is the same as applying them afterwards.
+     */
+    private String additionsXML()
+    {
+        HashMap<String, Map<String, Integer>> linkMap =
+                new HashMap<String, Map<String, Integer>>();
+
+        for(String linkType : links.keySet())
+        {
+            Map<String, Integer> linkTypeMap =
+                    new HashMap<String, Integer>(links.get(linkType));
+
+            if(linksToRemove.containsKey(linkType))
             {
-                return builder.newDocument();
+                linkTypeMap.keySet().removeAll(linksToRemove.get(linkType));
             }
 
-            return builder.parse(stream);
+            linkMap.put(linkType, linkTypeMap);
         }
-        catch (SAXException ex)
+
+        HashMap<String, String> propertyMap = new HashMap<String, String>(properties);
+        propertyMap.keySet().removeAll(propertiesToRemove);
+
+        StringWriter writer = new StringWriter();
+
+        try
         {
-            Logger.getLogger(Item.class.getName()).log(Level.SEVERE, null, ex);
+            toXML(writer, minus(tags, tagsToRemove), linkMap,
+                    minus(preselected, preselectedToRemove),
+                    minus(blacklisted, blacklistedToRemove), propertyMap, false);
         }
         catch (IOException ex)
         {
             Logger.getLogger(Item.class.getName()).log(Level.SEVERE, null, ex);
         }
-        catch (ParserConfigurationException ex)
+
+        return writer.toString();
+    }
+
+    private static Set<String> minus(Set<String> values, Set<String> removed)
+    {
+        Set<String> result = new LinkedHashSet<String>(values);
+        result.removeAll(removed);
+        return result;
+    }
+
+    boolean subtractionNeeded()
+    {
+        return (!linksToRemove.isEmpty() ||
+                !tagsToRemove.isEmpty() ||
+                !preselectedToRemove.isEmpty() ||
+                !blacklistedToRemove.isEmpty() ||
+                !propertiesToRemove.isEmpty());
+    }
+
+    /**
+     * Keeps the database's tag index in line with a save, or drops the item
+     * from it if its tags are no longer known.
+     */
+    private void updateTagIndex(boolean saved)
+    {
+        TagIndex index = database.getTagIndex();
+
+        if(index == null)
         {
-            Logger.getLogger(Item.class.getName()).log(Level.SEVERE, null, ex);
+            return;
         }
 
-        return null;
+        if(!saved)
+        {
+            index.remove(id);
+        }
+        else if(isCached)
+        {
+            index.setTags(id, tags);
+        }
+        else
+        {
+            index.update(id, tags, tagsToRemove);
+        }
     }
 
-    private List<String> readList(Document doc, String element)
+    private void toXML(Writer writer, Set<String> tags,
+            Map<String, Map<String, Integer>> links, Set<String> preselected,
+            Set<String> blacklisted, Map<String, String> properties,
+            boolean includeDocument) throws IOException
     {
-        NodeList nodes = doc.getElementsByTagName(element);
-        List<String> values = new LinkedList<String>();
+        Serializer.item(writer, id, tags, links, preselected, blacklisted, properties,
+                includeDocument);
+    }
 
-        for(int i = 0; i < nodes.getLength(); i++)
+    private synchronized void read()
+    {
+        if(isCached)
         {
-            values.add(nodes.item(i).getTextContent());
+            return;
         }
 
-        return values;
+        try
+        {
+            load(database.readItem(id));
+        }
+        catch (ResourceException ex)
+        {
+            // Items which do not exist yet are read as empty.
+
+            isCached = true;
+        }
     }
 
-    private String toString(Node node, boolean omitXmlDeclaration)
+    /**
+     * Fills the item from a snapshot of the item on the server, as if it had
+     * been read.
+     */
+    synchronized void load(ItemSnapshot snapshot)
+    {
+        snapshot.mergeInto(links, tags, preselected, blacklisted, properties);
+
+        // Removals made before the item was read apply to what was read.
+
+        for(String linkType : linksToRemove.keySet())
+        {
+            if(links.containsKey(linkType))
+            {
+                links.get(linkType).keySet().removeAll(linksToRemove.get(linkType));
+            }
+        }
+
+        tags.removeAll(tagsToRemove);
+        preselected.removeAll(preselectedToRemove);
+        blacklisted.removeAll(blacklistedToRemove);
+        properties.keySet().removeAll(propertiesToRemove);
+
+        this.snapshot = snapshot;
+        isCached = true;
+    }
+
+    private List<String> readList(List<String> resources,
+            Map<String, Object> options, String element)
     {
         try
         {
-            DOMSource domSource = new DOMSource(node);
-            StringWriter writer = new StringWriter();
-            StreamResult result = new StreamResult(writer);
-            TransformerFactory factory = TransformerFactory.newInstance();
-            Transformer transformer = factory.newTransformer();
-            if(omitXmlDeclaration)
+            return database.readList(resources, options, element);
+        }
+        catch (ResourceException ex)
+        {
+            return new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Asynchronous version of readList(), which likewise completes with an
+     * empty list if the query fails.
+     */
+    private CompletableFuture<List<String>> readListAsync(List<String> resources,
+            Map<String, Object> options, String element)
+    {
+        return database.readListAsync(resources, options, element).handle(
+                (List<String> results, Throwable error) ->
+        {
+            if(error == null)
             {
-                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                return results;
             }
-            transformer.transform(domSource, result);
-            return writer.toString();
+
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+            if(!(cause instanceof ResourceException))
+            {
+                throw error instanceof CompletionException ?
+                        (CompletionException) error : new CompletionException(error);
+            }
+
+            return new ArrayList<String>();
+        });
+    }
+
+    private List<Recommendation> readRecommendations(List<String> resources,
+            Map<String, Object> options, String element)
+    {
+        try
+        {
+            return database.readRecommendations(resources, options, element);
         }
-        catch(TransformerException ex)
+        catch (ResourceException ex)
         {
-            ex.printStackTrace();
-            return null;
+            return new ArrayList<Recommendation>();
         }
     }
 }
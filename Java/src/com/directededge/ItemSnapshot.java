@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.directededge;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable copy of an item's links, tags, preselected and blacklisted items
+ * and properties as stored on the server.
+ */
+final class ItemSnapshot
+{
+    private static final int OVERHEAD = 64;
+
+    private final Map<String, Map<String, Integer>> links;
+    private final Set<String> tags;
+    private final Set<String> preselected;
+    private final Set<String> blacklisted;
+    private final Map<String, String> properties;
+    private final long weight;
+
+    /**
+     * Creates a snapshot which takes ownership of the given collections; they
+     * must not be modified afterwards.
+     */
+    ItemSnapshot(Map<String, Map<String, Integer>> links, Set<String> tags,
+            Set<String> preselected, Set<String> blacklisted,
+            Map<String, String> properties)
+    {
+        long size = OVERHEAD;
+
+        for(Map.Entry<String, Map<String, Integer>> entry : links.entrySet())
+        {
+            Map<String, Integer> linkMap = entry.getValue();
+            entry.setValue(Collections.unmodifiableMap(linkMap));
+            size += OVERHEAD + 2 * entry.getKey().length();
+
+            for(String target : linkMap.keySet())
+            {
+                size += OVERHEAD + 2 * target.length();
+            }
+        }
+
+        for(Set<String> ids : Arrays.asList(tags, preselected, blacklisted))
+        {
+            for(String tag : ids)
+            {
+                size += OVERHEAD + 2 * tag.length();
+            }
+        }
+
+        for(Map.Entry<String, String> property : properties.entrySet())
+        {
+            size += OVERHEAD + 2 * property.getKey().length() +
+                    (property.getValue() == null ? 0 : 2 * property.getValue().length());
+        }
+
+        this.links = Collections.unmodifiableMap(links);
+        this.tags = Collections.unmodifiableSet(tags);
+        this.preselected = Collections.unmodifiableSet(preselected);
+        this.blacklisted = Collections.unmodifiableSet(blacklisted);
+        this.properties = Collections.unmodifiableMap(properties);
+        this.weight = size;
+    }
+
+    Map<String, Map<String, Integer>> links()
+    {
+        return links;
+    }
+
+    Set<String> tags()
+    {
+        return tags;
+    }
+
+    Set<String> preselected()
+    {
+        return preselected;
+    }
+
+    Set<String> blacklisted()
+    {
+        return blacklisted;
+    }
+
+    Map<String, String> properties()
+    {
+        return properties;
+    }
+
+    /**
+     * Creates a snapshot from copies of an item's collections.
+     */
+    static ItemSnapshot copyOf(Map<String, Map<String, Integer>> links,
+            Set<String> tags, Set<String> preselected, Set<String> blacklisted,
+            Map<String, String> properties)
+    {
+        HashMap<String, Map<String, Integer>> linkCopy =
+                new HashMap<String, Map<String, Integer>>();
+
+        for(String linkType : links.keySet())
+        {
+            linkCopy.put(linkType, new HashMap<String, Integer>(links.get(linkType)));
+        }
+
+        return new ItemSnapshot(linkCopy, new HashSet<String>(tags),
+                new LinkedHashSet<String>(preselected), new LinkedHashSet<String>(blacklisted),
+                new HashMap<String, String>(properties));
+    }
+
+    /**
+     * @return The approximate number of bytes used by the snapshot.
+     */
+    long weight()
+    {
+        return weight;
+    }
+
+    /**
+     * Copies the snapshot into an item's collections.  Values which are
+     * already present, e.g. from local changes, are not overwritten.
+     */
+    void mergeInto(Map<String, Map<String, Integer>> itemLinks, Set<String> itemTags,
+            Set<String> itemPreselected, Set<String> itemBlacklisted,
+            Map<String, String> itemProperties)
+    {
+        for(String linkType : links.keySet())
+        {
+            if(!itemLinks.containsKey(linkType))
+            {
+                itemLinks.put(linkType, new HashMap<String, Integer>());
+            }
+
+            Map<String, Integer> linkMap = itemLinks.get(linkType);
+
+            for(Map.Entry<String, Integer> link : links.get(linkType).entrySet())
+            {
+                if(!linkMap.containsKey(link.getKey()))
+                {
+                    linkMap.put(link.getKey(), link.getValue());
+                }
+            }
+        }
+
+        itemTags.addAll(tags);
+        itemPreselected.addAll(preselected);
+        itemBlacklisted.addAll(blacklisted);
+
+        for(Map.Entry<String, String> property : properties.entrySet())
+        {
+            if(!itemProperties.containsKey(property.getKey()))
+            {
+                itemProperties.put(property.getKey(), property.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.directededge;
+
+import com.directededge.Database.ResponseReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming readers for the XML documents returned by the Directed Edge
+ * servers.  Each reader makes a single pass over the response as it arrives.
+ */
+final class Parser
+{
+    private static final XMLInputFactory factory = createFactory();
+
+    private Parser()
+    {
+
+    }
+
+    /**
+     * Reads an item document into the given collections.  Values which are
+     * already present, e.g. from local changes, are not overwritten.
+     */
+    static ResponseReader<Void> item(final Map<String, Map<String, Integer>> links,
+            final Set<String> tags, final Set<String> preselected,
+            final Set<String> blacklisted, final Map<String, String> properties)
+    {
+        return (InputStream stream) ->
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+
+            try
+            {
+                while(reader.hasNext())
+                {
+                    if(reader.next() != XMLStreamConstants.START_ELEMENT)
+                    {
+                        continue;
+                    }
+
+                    String element = reader.getLocalName();
+
+                    if(element.equals("link"))
+                    {
+                        readLink(reader, links);
+                    }
+                    else if(element.equals("tag"))
+                    {
+                        tags.add(reader.getElementText());
+                    }
+                    else if(element.equals("preselected"))
+                    {
+                        preselected.add(reader.getElementText());
+                    }
+                    else if(element.equals("blacklisted"))
+                    {
+                        blacklisted.add(reader.getElementText());
+                    }
+                    else if(element.equals("property"))
+                    {
+                        String name = reader.getAttributeValue(null, "name");
+                        String value = reader.getElementText();
+
+                        if(name != null && !properties.containsKey(name))
+                        {
+                            properties.put(name, value);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return null;
+        };
+    }
+
+    /**
+     * Reads the tags of each item in a document, e.g. a database dump, into
+     * the index.
+     */
+    static ResponseReader<Void> tags(final TagIndex index)
+    {
+        return (InputStream stream) ->
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            String id = null;
+            Set<String> tags = new HashSet<String>();
+
+            try
+            {
+                while(reader.hasNext())
+                {
+                    int event = reader.next();
+
+                    if(event == XMLStreamConstants.START_ELEMENT)
+                    {
+                        if(reader.getLocalName().equals("item"))
+                        {
+                            id = reader.getAttributeValue(null, "id");
+                            tags.clear();
+                        }
+                        else if(id != null && reader.getLocalName().equals("tag"))
+                        {
+                            tags.add(reader.getElementText());
+                        }
+                    }
+                    else if(event == XMLStreamConstants.END_ELEMENT &&
+                            id != null && reader.getLocalName().equals("item"))
+                    {
+                        index.setTags(id, tags);
+                        id = null;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return null;
+        };
+    }
+
+    /**
+     * Reads the text of every element with the given name, in document order.
+     */
+    static ResponseReader<List<String>> list(final String element)
+    {
+        return (InputStream stream) ->
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            List<String> values = new ArrayList<String>();
+
+            try
+            {
+                while(reader.hasNext())
+                {
+                    if(reader.next() == XMLStreamConstants.START_ELEMENT &&
+                       reader.getLocalName().equals(element))
+                    {
+                        values.add(reader.getElementText());
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return values;
+        };
+    }
+
+    /**
+     * Reads the results of a related or recommended query along with the
+     * properties returned as attributes of each result.
+     */
+    static ResponseReader<List<Recommendation>> recommendations(final String element)
+    {
+        return (InputStream stream) ->
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            List<Recommendation> values = new ArrayList<Recommendation>();
+
+            try
+            {
+                while(reader.hasNext())
+                {
+                    if(reader.next() == XMLStreamConstants.START_ELEMENT &&
+                            reader.getLocalName().equals(element))
+                    {
+                        Map<String, String> properties = new HashMap<String, String>();
+
+                        for(int i = 0; i < reader.getAttributeCount(); i++)
+                        {
+                            properties.put(reader.getAttributeLocalName(i),
+                                    reader.getAttributeValue(i));
+                        }
+
+                        values.add(new Recommendation(reader.getElementText(),
+                                values.size() + 1, properties));
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return values;
+        };
+    }
+
+    /**
+     * Reads the results of a query for several items, which are grouped in an
+     * item element for each of the items, into a map from item ID to results.
+     */
+    static ResponseReader<Map<String, List<String>>> itemLists(final String element)
+    {
+        return (InputStream stream) ->
+        {
+            XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+            List<String> current = null;
+
+            try
+            {
+                while(reader.hasNext())
+                {
+                    if(reader.next() != XMLStreamConstants.START_ELEMENT)
+                    {
+                        continue;
+                    }
+
+                    if(reader.getLocalName().equals("item"))
+                    {
+                        current = new ArrayList<String>();
+                        values.put(reader.getAttributeValue(null, "id"), current);
+                    }
+                    else if(current != null && reader.getLocalName().equals(element))
+                    {
+                        current.add(reader.getElementText());
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            return values;
+        };
+    }
+
+    private static void readLink(XMLStreamReader reader,
+            Map<String, Map<String, Integer>> links) throws XMLStreamException
+    {
+        int weight = 0;
+        String linkType = reader.getAttributeValue(null, "type");
+        String weightAttribute = reader.getAttributeValue(null, "weight");
+
+        if(weightAttribute != null)
+        {
+            weight = Integer.parseInt(weightAttribute);
+        }
+
+        if(linkType == null)
+        {
+            linkType = "";
+        }
+
+        String target = reader.getElementText();
+
+        if(!links.containsKey(linkType))
+        {
+            links.put(linkType, new HashMap<String, Integer>());
+        }
+
+        if(!links.get(linkType).containsKey(target))
+        {
+            links.get(linkType).put(target, weight);
+        }
+    }
+
+    private static XMLInputFactory createFactory()
+    {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return inputFactory;
+    }
+}
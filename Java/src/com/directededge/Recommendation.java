@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.directededge;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A single result of a related or recommended query along with the properties
+ * of the result item that the server returned with it.  This avoids reading
+ * each result item separately just to display it.
+ *
+ * @see Item#getRelatedWithProperties(java.util.Set, java.util.Map)
+ * @see Item#getRecommendedWithProperties(java.util.Set, java.util.Map)
+ */
+public final class Recommendation
+{
+    private static final int OVERHEAD = 64;
+
+    private final String id;
+    private final int rank;
+    private final Map<String, String> properties;
+
+    Recommendation(String id, int rank, Map<String, String> properties)
+    {
+        this.id = id;
+        this.rank = rank;
+        this.properties = Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @return The ID of the result item.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * The server returns results ordered by relevance without a score, so the
+     * rank is the position of the result in the list, starting at 1.
+     *
+     * @return The position of the result.
+     */
+    public int getRank()
+    {
+        return rank;
+    }
+
+    /**
+     * @return The properties of the result item, which may not be modified.
+     */
+    public Map<String, String> getProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * @param name The name of the property.
+     * @return The value of the property, or null if it was not returned.
+     */
+    public String getProperty(String name)
+    {
+        return properties.get(name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return id;
+    }
+
+    long weight()
+    {
+        long size = OVERHEAD + 2 * id.length();
+
+        for(Map.Entry<String, String> property : properties.entrySet())
+        {
+            size += OVERHEAD + 2 * property.getKey().length() +
+                    2 * property.getValue().length();
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.directededge;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes items as Directed Edge XML directly to a Writer.  The output matches
+ * what the JDK's DOM serializer produces for the same item, but avoids
+ * building a document and looking up a Transformer for every item.
+ */
+final class Serializer
+{
+    private Serializer()
+    {
+
+    }
+
+    /**
+     * Writes a single item element, optionally wrapped in an XML declaration
+     * and a directededge root element.
+     */
+    static void item(Writer writer, String id, Set<String> tags,
+            Map<String, Map<String, Integer>> links, Set<String> preselected,
+            Set<String> blacklisted, Map<String, String> properties,
+            boolean includeDocument) throws IOException
+    {
+        if(includeDocument)
+        {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            writer.write("<directededge version=\"0.1\">");
+        }
+
+        writer.write("<item");
+        attribute(writer, "id", id);
+
+        boolean empty = tags.isEmpty() && preselected.isEmpty() &&
+                blacklisted.isEmpty() && properties.isEmpty();
+
+        for(Map<String, Integer> linkMap : links.values())
+        {
+            empty &= linkMap.isEmpty();
+        }
+
+        if(empty)
+        {
+            writer.write("/>");
+        }
+        else
+        {
+            writer.write('>');
+
+            for(String tag : tags)
+            {
+                writer.write("<tag");
+                content(writer, "tag", tag);
+            }
+
+            for(String linkType : links.keySet())
+            {
+                Map<String, Integer> linkMap = links.get(linkType);
+
+                for(String linkName : linkMap.keySet())
+                {
+                    writer.write("<link");
+
+                    if(linkType != null && !linkType.isEmpty())
+                    {
+                        attribute(writer, "type", linkType);
+                    }
+
+                    if(linkMap.get(linkName) > 0)
+                    {
+                        attribute(writer, "weight", linkMap.get(linkName).toString());
+                    }
+
+                    content(writer, "link", linkName);
+                }
+            }
+
+            for(String other : preselected)
+            {
+                writer.write("<preselected");
+                content(writer, "preselected", other);
+            }
+
+            for(String other : blacklisted)
+            {
+                writer.write("<blacklisted");
+                content(writer, "blacklisted", other);
+            }
+
+            for(String key : properties.keySet())
+            {
+                writer.write("<property");
+                attribute(writer, "name", key);
+                content(writer, "property", properties.get(key));
+            }
+
+            writer.write("</item>");
+        }
+
+        if(includeDocument)
+        {
+            writer.write("</directededge>");
+        }
+    }
+
+    /**
+     * Finishes an open start tag with the escaped text and the end tag, or
+     * closes it as an empty element if there is no text.
+     */
+    private static void content(Writer writer, String element, String text)
+            throws IOException
+    {
+        if(text == null || text.isEmpty())
+        {
+            writer.write("/>");
+            return;
+        }
+
+        writer.write('>');
+        escape(writer, text, false);
+        writer.write("</");
+        writer.write(element);
+        writer.write('>');
+    }
+
+    private static void attribute(Writer writer, String name, String value)
+            throws IOException
+    {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+
+        if(value != null)
+        {
+            escape(writer, value, true);
+        }
+
+        writer.write('"');
+    }
+
+    private static void escape(Writer writer, String value, boolean attribute)
+            throws IOException
+    {
+        int start = 0;
+        int length = value.length();
+
+        for(int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+            String replacement = null;
+            int codePoint = -1;
+
+            switch(c)
+            {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                case '\n':
+                    replacement = attribute ? "&#10;" : null;
+                    break;
+                case '\t':
+                    replacement = attribute ? "&#9;" : null;
+                    break;
+                default:
+                    if(c < 0x20 || (!attribute && c >= 0x7f && c <= 0x9f))
+                    {
+                        codePoint = c;
+                    }
+                    else if(Character.isHighSurrogate(c) && i + 1 < length &&
+                            Character.isLowSurrogate(value.charAt(i + 1)))
+                    {
+                        codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+                    }
+            }
+
+            if(replacement == null && codePoint < 0)
+            {
+                continue;
+            }
+
+            writer.write(value, start, i - start);
+
+            if(replacement != null)
+            {
+                writer.write(replacement);
+            }
+            else
+            {
+                writer.write("&#");
+                writer.write(Integer.toString(codePoint));
+                writer.write(';');
+
+                if(Character.isSupplementaryCodePoint(codePoint))
+                {
+                    i++;
+                }
+            }
+
+            start = i + 1;
+        }
+
+        writer.write(value, start, length - start);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.directededge;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+
+/**
+ * An output stream which is held in memory until it grows past a threshold
+ * and is then moved to a temporary file.  The contents can be uploaded with
+ * the entity returned by toEntity().
+ */
+final class SpillBuffer extends OutputStream
+{
+    private static final ContentType CONTENT_TYPE =
+            ContentType.create("text/xml", "UTF-8");
+
+    private long threshold;
+    private ByteArrayOutputStream memory;
+    private File file;
+    private OutputStream output;
+    private long size;
+
+    /**
+     * @param threshold The number of bytes which are kept in memory before
+     * the buffer is moved to disk.
+     */
+    SpillBuffer(long threshold)
+    {
+        this.threshold = threshold;
+        memory = new ByteArrayOutputStream();
+        output = memory;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        reserve(1);
+        output.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        reserve(length);
+        output.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        output.close();
+    }
+
+    /**
+     * Changes the threshold.  If the buffer is already larger than the new
+     * threshold it is moved to disk on the next write.
+     */
+    void setThreshold(long threshold)
+    {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return The number of bytes written to the buffer.
+     */
+    long size()
+    {
+        return size;
+    }
+
+    /**
+     * @return Whether the contents have been moved to a temporary file.
+     */
+    boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    /**
+     * @return An entity for the contents of the buffer.  The buffer must be
+     * closed first.
+     */
+    HttpEntity toEntity()
+    {
+        if(file != null)
+        {
+            return new FileEntity(file, CONTENT_TYPE);
+        }
+
+        return new ByteArrayEntity(memory.toByteArray(), CONTENT_TYPE);
+    }
+
+    /**
+     * Releases the contents of the buffer and removes its temporary file.
+     */
+    void discard()
+    {
+        memory = null;
+
+        if(file != null)
+        {
+            file.delete();
+            file = null;
+        }
+    }
+
+    private void reserve(int length) throws IOException
+    {
+        size += length;
+
+        if(file == null && size > threshold)
+        {
+            file = File.createTempFile("directededge", ".xml");
+            file.deleteOnExit();
+            output = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(output);
+            memory = null;
+        }
+    }
+}
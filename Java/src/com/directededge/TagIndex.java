@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.directededge;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A local, thread-safe map between items and their tags.  When attached to a
+ * Database along with a query cache, related and recommended queries filtered
+ * by tags are answered by filtering a cached, untagged result list through the
+ * index, so that queries for different tag sets share a single request.
+ *
+ * The index is filled as items are read and saved through the database, and
+ * may be loaded up front from a file in the format written by Exporter.
+ * Results which contain items that the index does not know about are fetched
+ * from the server as usual.  Since an index filled from reads rarely knows
+ * every result, the untagged list is only requested for filtering once the
+ * index has been marked complete; otherwise only an untagged list which is
+ * already cached is used.
+ *
+ * @see #setComplete(boolean)
+ *
+ * @see Database#setTagIndex(com.directededge.TagIndex)
+ */
+public class TagIndex
+{
+    private final Map<String, Set<String>> itemTags = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> taggedItems = new HashMap<String, Set<String>>();
+    private volatile boolean complete;
+
+    /**
+     * Adds the items in a Directed Edge XML file, e.g. one created by Exporter,
+     * to the index.  Files ending in .gz are decompressed.
+     *
+     * @param fileName The file to read.
+     * @throws IOException If the file cannot be read or parsed.
+     */
+    public void load(String fileName) throws IOException
+    {
+        InputStream stream = new FileInputStream(fileName);
+
+        try
+        {
+            load(fileName.endsWith(".gz") ? new GZIPInputStream(stream) : stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Adds the items in a Directed Edge XML document to the index.
+     *
+     * @param stream The document to read.
+     * @throws IOException If the document cannot be read or parsed.
+     */
+    public void load(InputStream stream) throws IOException
+    {
+        try
+        {
+            Parser.tags(this).read(stream);
+        }
+        catch (XMLStreamException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Marks the index as holding every item in the database, e.g. after
+     * loading a full export.  Tagged queries are then answered by fetching the
+     * untagged results and filtering them, rather than only when the untagged
+     * results are already cached.
+     *
+     * @param complete Whether the index holds every item.
+     */
+    public void setComplete(boolean complete)
+    {
+        this.complete = complete;
+    }
+
+    /**
+     * @return True if the index has been marked as holding every item.
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Replaces the tags known for an item.
+     *
+     * @param id The ID of the item.
+     * @param tags All of the item's tags.
+     */
+    public synchronized void setTags(String id, Collection<String> tags)
+    {
+        remove(id);
+
+        Set<String> copy = new HashSet<String>(tags);
+        itemTags.put(id, copy);
+
+        for(String tag : copy)
+        {
+            if(!taggedItems.containsKey(tag))
+            {
+                taggedItems.put(tag, new HashSet<String>());
+            }
+
+            taggedItems.get(tag).add(id);
+        }
+    }
+
+    /**
+     * @param id The ID of an item.
+     * @return The item's tags, or null if the item is not in the index.
+     */
+    public synchronized Set<String> getTags(String id)
+    {
+        Set<String> tags = itemTags.get(id);
+        return tags == null ? null : Collections.unmodifiableSet(new HashSet<String>(tags));
+    }
+
+    /**
+     * @param tag A tag.
+     * @return The IDs of the items in the index with the tag.
+     */
+    public synchronized Set<String> getItems(String tag)
+    {
+        Set<String> items = taggedItems.get(tag);
+        return items == null ? Collections.<String>emptySet() :
+                Collections.unmodifiableSet(new HashSet<String>(items));
+    }
+
+    /**
+     * Drops an item from the index, e.g. when its tags are no longer known.
+     *
+     * @param id The ID of the item.
+     */
+    public synchronized void remove(String id)
+    {
+        Set<String> tags = itemTags.remove(id);
+
+        if(tags == null)
+        {
+            return;
+        }
+
+        for(String tag : tags)
+        {
+            Set<String> items = taggedItems.get(tag);
+            items.remove(id);
+
+            if(items.isEmpty())
+            {
+                taggedItems.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * @return The number of items in the index.
+     */
+    public synchronized int size()
+    {
+        return itemTags.size();
+    }
+
+    /**
+     * Removes every item from the index, which is then no longer complete.
+     */
+    public synchronized void clear()
+    {
+        itemTags.clear();
+        taggedItems.clear();
+        complete = false;
+    }
+
+    /**
+     * Applies tags added to and removed from an item without reading it.  This
+     * only changes items whose full set of tags is already known.
+     */
+    synchronized void update(String id, Set<String> added, Set<String> removed)
+    {
+        Set<String> tags = itemTags.get(id);
+
+        if(tags != null)
+        {
+            tags = new HashSet<String>(tags);
+            tags.addAll(added);
+            tags.removeAll(removed);
+            setTags(id, tags);
+        }
+    }
+
+    /**
+     * Keeps the items with any, or if all is set every one, of the tags, up to
+     * maxResults items.
+     *
+     * @return The filtered items, or null if any of the items considered are
+     * not in the index.
+     */
+    synchronized List<String> filter(List<String> ids, Set<String> tags, boolean all,
+            int maxResults)
+    {
+        List<String> filtered = new ArrayList<String>();
+
+        for(String id : ids)
+        {
+            if(filtered.size() >= maxResults)
+            {
+                break;
+            }
+
+            Set<String> known = itemTags.get(id);
+
+            if(known == null)
+            {
+                return null;
+            }
+
+            if(all ? known.containsAll(tags) : !Collections.disjoint(known, tags))
+            {
+                filtered.add(id);
+            }
+        }
+
+        return filtered;
+    }
+}
@@ -23,12 +23,28 @@
  * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 package com.directededge;
 
+import com.directededge.Database.Request;
 import com.directededge.Database.ResourceException;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,8 +53,27 @@ import java.util.logging.Logger;
  * the Exporter where updates to items are made and then updater.export(item)
  * is called and then all of the changes are pushed live with updater.finish()
  *
- * @note The incremental changes are stored in memory, so some attention should
- * be paid to the number of updates made in one batch.
+ * @note The incremental changes are stored in memory unless a memory limit is
+ * set, in which case they are moved to a temporary file once they grow past
+ * it, and that file is streamed to the server by finish().
+ *
+ * Large batches can also be split into chunks which are uploaded as they fill
+ * up, and failed chunks can be retried on their own.  With upload threads
+ * configured, chunks are uploaded in the background while items continue to
+ * be exported, and export() may be called from several threads.
+ *
+ * Items may also be exported with a method of their own, so that additions,
+ * subtractions and deletions can be made in one batch.  The items for each
+ * method are collected into their own documents, since the server applies one
+ * update method per request, and the documents for different methods may be
+ * uploaded at the same time.  A batch should therefore not make conflicting
+ * changes to the same item, such as adding a tag with one method and
+ * removing it with another.
+ *
+ * @see #setMemoryLimit(long)
+ * @see #setChunkSize(int, long)
+ * @see #setUploadThreads(int, int)
+ * @see #export(com.directededge.Item, com.directededge.Updater.Method)
  */
 public class Updater extends Exporter
 {
@@ -50,8 +85,216 @@ public class Updater extends Exporter
         Delete
     }
 
-    private StringWriter writer;
+    /**
+     * One document of a chunked batch.  A chunk which could not be uploaded
+     * keeps its contents until it is retried.
+     *
+     * @see Updater#retry(com.directededge.Updater.Chunk)
+     */
+    public static class Chunk
+    {
+        private final int index;
+        private final Method method;
+        private final List<String> ids;
+        private final int items;
+        private final long bytes;
+        private volatile SpillBuffer buffer;
+        private volatile boolean discarded;
+        private volatile ResourceException error;
+        private volatile long latency;
+
+        Chunk(int index, Method method, List<String> ids, SpillBuffer buffer)
+        {
+            this.index = index;
+            this.method = method;
+            this.ids = ids;
+            this.items = ids.size();
+            this.bytes = buffer.size();
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return The position of this chunk in the batch, starting at zero.
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        /**
+         * @return The update method the chunk is uploaded with.
+         */
+        public Method getMethod()
+        {
+            return method;
+        }
+
+        /**
+         * @return The number of items in this chunk.
+         */
+        public int getItems()
+        {
+            return items;
+        }
+
+        /**
+         * @return The size of the chunk's XML document in bytes.
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return True if the chunk has been accepted by the server.
+         */
+        public boolean isUploaded()
+        {
+            return buffer == null && !discarded;
+        }
+
+        /**
+         * @return True if the chunk was discarded without being uploaded.
+         */
+        public boolean isDiscarded()
+        {
+            return discarded;
+        }
+
+        /**
+         * Releases the contents of a failed chunk which will not be retried,
+         * including its temporary file if the batch was moved to disk.  The
+         * chunk remains a failure but can no longer be retried.
+         */
+        public void discard()
+        {
+            SpillBuffer contents = buffer;
+
+            if(contents != null)
+            {
+                discarded = true;
+                buffer = null;
+                contents.discard();
+            }
+        }
+
+        /**
+         * @return The error from the most recent failed upload, or null.
+         */
+        public ResourceException getError()
+        {
+            return error;
+        }
+
+        /**
+         * @return The duration of the most recent upload in milliseconds.
+         */
+        public long getLatency()
+        {
+            return latency;
+        }
+    }
+
+    /**
+     * The outcome of a batch, returned by commit().
+     */
+    public static class Summary
+    {
+        private final List<Chunk> chunks;
+        private final List<Chunk> failures = new ArrayList<Chunk>();
+        private int items;
+        private long bytes;
+        private long totalLatency;
+        private long maxLatency;
+
+        Summary(List<Chunk> chunks)
+        {
+            this.chunks = chunks;
+
+            for(Chunk chunk : chunks)
+            {
+                items += chunk.getItems();
+                bytes += chunk.getBytes();
+                totalLatency += chunk.getLatency();
+                maxLatency = Math.max(maxLatency, chunk.getLatency());
+
+                if(!chunk.isUploaded())
+                {
+                    failures.add(chunk);
+                }
+            }
+        }
+
+        /**
+         * @return All of the chunks in the batch, in order.
+         */
+        public List<Chunk> getChunks()
+        {
+            return chunks;
+        }
+
+        /**
+         * @return The chunks which were not accepted by the server.  These may
+         * be passed to Updater.retry(), or discarded if they will not be.
+         */
+        public List<Chunk> getFailures()
+        {
+            return failures;
+        }
+
+        /**
+         * @return True if every chunk was uploaded.
+         */
+        public boolean isSuccessful()
+        {
+            return failures.isEmpty();
+        }
+
+        public int getItems()
+        {
+            return items;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return The sum of the upload times of all chunks in milliseconds.
+         */
+        public long getTotalLatency()
+        {
+            return totalLatency;
+        }
+
+        /**
+         * @return The longest upload time of a single chunk in milliseconds.
+         */
+        public long getMaxLatency()
+        {
+            return maxLatency;
+        }
+
+        public long getAverageLatency()
+        {
+            return chunks.isEmpty() ? 0 : totalLatency / chunks.size();
+        }
+    }
+
+    private SpillBuffer buffer;
     private Method method;
+    private long memoryLimit = Long.MAX_VALUE;
+    private int maxItems;
+    private long maxBytes;
+    private List<String> ids = new ArrayList<String>();
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private int uploadThreads;
+    private Semaphore uploadSlots;
+    private ExecutorService uploader;
+    private final List<Future<?>> uploads = new ArrayList<Future<?>>();
+    private final Map<Method, Updater> groups = new EnumMap<Method, Updater>(Method.class);
+    private Updater batch = this;
 
     /**
      * @param database The database to be updated.
@@ -63,30 +306,424 @@ public class Updater extends Exporter
 
     public Updater(Database database, Method method)
     {
-        this.writer = new StringWriter();
+        this.buffer = new SpillBuffer(memoryLimit);
         this.method = method;
-        begin(database, writer);
+        begin(database, new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets the number of bytes of pending changes which are held in memory.
+     * Once the batch grows larger than this it is written to a temporary file
+     * instead, so that memory use stays flat however large the batch gets.
+     *
+     * @param bytes The maximum size of the in-memory buffer.
+     */
+    public synchronized void setMemoryLimit(long bytes)
+    {
+        memoryLimit = bytes;
+        buffer.setThreshold(bytes);
+
+        for(Updater group : groups.values())
+        {
+            group.setMemoryLimit(bytes);
+        }
+    }
+
+    /**
+     * Splits the batch into separate documents which are uploaded as soon as
+     * they reach either limit, rather than all at once by finish().
+     *
+     * @param items The maximum number of items in a chunk, or zero for no
+     * limit.
+     * @param bytes The maximum size of a chunk in bytes, or zero for no limit.
+     * A chunk may exceed this by the size of its last item.
+     */
+    public synchronized void setChunkSize(int items, long bytes)
+    {
+        maxItems = items;
+        maxBytes = bytes;
+
+        for(Updater group : groups.values())
+        {
+            group.setChunkSize(items, bytes);
+        }
+    }
+
+    /**
+     * Uploads closed chunks from a pool of background threads instead of from
+     * the thread that filled them.  When queueSize chunks are already waiting
+     * for an upload thread, export() blocks until one has been sent.  This must
+     * be called before any items are exported.
+     *
+     * @param threads The number of chunks which are uploaded at the same time.
+     * @param queueSize The number of closed chunks which may wait for upload.
+     * @see #setChunkSize(int, long)
+     */
+    public synchronized void setUploadThreads(int threads, int queueSize)
+    {
+        uploadThreads = threads;
+        uploadSlots = new Semaphore(threads + queueSize);
+    }
+
+    @Override
+    public synchronized void export(Item item)
+    {
+        super.export(item);
+        getDatabase().itemChanged(item.getName(), null);
+        ids.add(item.getName());
+
+        TagIndex index = getDatabase().getTagIndex();
+
+        if(index != null)
+        {
+            index.remove(item.getName());
+        }
+
+        if(maxItems > 0 && ids.size() >= maxItems)
+        {
+            nextChunk();
+        }
+        else if(maxBytes > 0)
+        {
+            try
+            {
+                flush();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            }
+
+            if(buffer.size() >= maxBytes)
+            {
+                nextChunk();
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the batch with its own update method rather than the
+     * one the updater was created with.  Items are collected into a separate
+     * document for each method, which is chunked and uploaded with the same
+     * settings as the rest of the batch.
+     *
+     * @param item The item to export.
+     * @param method The update method to apply to the item.
+     */
+    public synchronized void export(Item item, Method method)
+    {
+        if(method == this.method)
+        {
+            export(item);
+            return;
+        }
+
+        Updater group = groups.get(method);
+
+        if(group == null)
+        {
+            group = new Updater(getDatabase(), method);
+            group.batch = this;
+            group.setMemoryLimit(memoryLimit);
+            group.setChunkSize(maxItems, maxBytes);
+            groups.put(method, group);
+        }
+
+        group.export(item);
     }
 
     /**
-     * Pushes the pending changes to the database.
+     * Pushes the pending changes to the database.  Chunks which fail to upload
+     * are logged; use commit() to inspect them instead.  Failed chunks may
+     * still be retried, and should be discarded if they will not be.
+     *
+     * @see #getFailedChunks()
+     * @see #commit()
      */
     @Override
     public void finish()
+    {
+        for(Chunk chunk : commit().getFailures())
+        {
+            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null,
+                    chunk.getError());
+        }
+    }
+
+    /**
+     * Pushes the pending changes to the database and waits until every chunk
+     * has been uploaded or has failed.  The last chunks of each update method
+     * are uploaded at the same time.
+     *
+     * @return A summary of the uploaded chunks, their latencies and failures.
+     */
+    public synchronized Summary commit()
+    {
+        List<Updater> open = new ArrayList<Updater>();
+
+        if(!ids.isEmpty() || (chunks.isEmpty() && groups.isEmpty()))
+        {
+            open.add(this);
+        }
+
+        for(Updater group : groups.values())
+        {
+            if(!group.ids.isEmpty())
+            {
+                open.add(group);
+            }
+        }
+
+        if(uploadThreads > 0 || open.size() < 2)
+        {
+            for(Updater updater : open)
+            {
+                updater.closeChunk(true);
+            }
+        }
+        else
+        {
+            // The calling thread uploads chunks itself alongside the executor,
+            // so this does not wait on a busy executor when run from one.
+
+            List<Request<Void>> sends = new ArrayList<Request<Void>>();
+
+            for(Updater updater : open)
+            {
+                final Chunk chunk = updater.closeChunk(false);
+
+                sends.add(() ->
+                {
+                    upload(chunk);
+                    return null;
+                });
+            }
+
+            for(CompletableFuture<Void> send : getDatabase().fanOut(sends))
+            {
+                try
+                {
+                    send.join();
+                }
+                catch (CompletionException ex)
+                {
+                    // Recorded on the chunk and reported by the summary.
+                }
+            }
+        }
+
+        for(Future<?> upload : uploads)
+        {
+            try
+            {
+                upload.get();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException ex)
+            {
+                Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        uploads.clear();
+
+        if(uploader != null)
+        {
+            uploader.shutdown();
+            uploader = null;
+        }
+
+        return new Summary(new ArrayList<Chunk>(chunks));
+    }
+
+    /**
+     * @return The chunks which have been closed so far, in order.
+     */
+    public synchronized List<Chunk> getChunks()
+    {
+        return new ArrayList<Chunk>(chunks);
+    }
+
+    /**
+     * @return The chunks which have not been accepted by the server.
+     */
+    public synchronized List<Chunk> getFailedChunks()
+    {
+        List<Chunk> failed = new ArrayList<Chunk>();
+
+        for(Chunk chunk : chunks)
+        {
+            if(!chunk.isUploaded())
+            {
+                failed.add(chunk);
+            }
+        }
+
+        return failed;
+    }
+
+    /**
+     * Uploads a chunk which failed again, without resending the rest of the
+     * batch.
+     *
+     * @param chunk A chunk from this updater.
+     * @throws ResourceException If the upload fails again.
+     * @throws IllegalStateException If the chunk has been discarded.
+     */
+    public void retry(Chunk chunk) throws ResourceException
+    {
+        if(chunk.isDiscarded())
+        {
+            throw new IllegalStateException("Chunk " + chunk.getIndex() + " was discarded");
+        }
+
+        if(!chunk.isUploaded())
+        {
+            upload(chunk);
+        }
+    }
+
+    private void nextChunk()
+    {
+        closeChunk(true);
+        buffer = new SpillBuffer(memoryLimit);
+        begin(getDatabase(), new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the current document and adds it to the batch's chunks, and
+     * sends it unless send is false.  Groups of other methods record their
+     * chunks and uploads on the updater they belong to.
+     */
+    private Chunk closeChunk(boolean send)
     {
         super.finish();
+
+        final Chunk chunk = new Chunk(batch.chunks.size(), method, ids, buffer);
+        batch.chunks.add(chunk);
+        ids = new ArrayList<String>();
+
+        if(!send)
+        {
+            return chunk;
+        }
+
+        if(batch.uploadThreads <= 0)
+        {
+            uploadQuietly(chunk);
+            return chunk;
+        }
+
+        batch.uploadSlots.acquireUninterruptibly();
+
+        batch.uploads.add(batch.uploader().submit(() ->
+        {
+            try
+            {
+                uploadQuietly(chunk);
+            }
+            finally
+            {
+                batch.uploadSlots.release();
+            }
+        }));
+
+        return chunk;
+    }
+
+    private void uploadQuietly(Chunk chunk)
+    {
         try
         {
-            HashMap<String, Object> options = new HashMap<String, Object>();
-            options.put("updateMethod", method.toString().toLowerCase());
-            getDatabase().post(new ArrayList<String>(), writer.toString(), options);
+            upload(chunk);
         }
         catch (ResourceException ex)
         {
-            Logger.getLogger(Updater.class.getName()).log(Level.SEVERE, null, ex);
+            // Recorded on the chunk and reported by commit().
         }
     }
 
+    private void upload(Chunk chunk) throws ResourceException
+    {
+        SpillBuffer contents = chunk.buffer;
+
+        if(contents == null)
+        {
+            if(chunk.isDiscarded())
+            {
+                throw new IllegalStateException("Chunk " + chunk.getIndex() + " was discarded");
+            }
+
+            return;
+        }
+
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("updateMethod", chunk.method.toString().toLowerCase());
+        long start = System.nanoTime();
+
+        try
+        {
+            getDatabase().post(new ArrayList<String>(), contents.toEntity(), options);
+        }
+        catch (ResourceException ex)
+        {
+            chunk.error = ex;
+            throw ex;
+        }
+        finally
+        {
+            chunk.latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            itemsChanged(chunk);
+        }
+
+        contents.discard();
+        chunk.buffer = null;
+        chunk.error = null;
+    }
+
+    /**
+     * Drops the chunk's items from the item cache and the tag index once the
+     * server has seen the chunk, since a read while it was waiting to be sent
+     * may have stored the old state again.  This is also done after a failed
+     * upload, which the server may have partly applied.
+     */
+    private void itemsChanged(Chunk chunk)
+    {
+        TagIndex index = getDatabase().getTagIndex();
+
+        for(String id : chunk.ids)
+        {
+            getDatabase().itemChanged(id, null);
+
+            if(index != null)
+            {
+                index.remove(id);
+            }
+        }
+    }
+
+    private ExecutorService uploader()
+    {
+        if(uploader == null)
+        {
+            uploader = Executors.newFixedThreadPool(uploadThreads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Directed Edge upload");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return uploader;
+    }
+
     protected Updater.Method method()
     {
         return method;
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2016 Directed Edge, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+
+package com.directededge;
+
+import com.directededge.Database.ResourceException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects saved changes to items and writes them to the database in batches
+ * from a background thread.  Changes to the same item within a window are
+ * merged, so that each item is sent at most once per batch.  Items in chunks
+ * which the server does not accept are put back in the queue and sent again
+ * with the next batch.  While batches keep failing the window is doubled for
+ * each failure, and an item's changes are logged and dropped once they have
+ * failed MAX_ATTEMPTS times.
+ *
+ * @see Database#setWriteBehind(long, int)
+ */
+final class WriteBehind
+{
+    private static final int CHUNK_SIZE = 1000;
+    static final int MAX_ATTEMPTS = 5;
+
+    private final Database database;
+    private final long window;
+    private final int maxItems;
+    private Map<String, Item> pending = new LinkedHashMap<String, Item>();
+    private Set<String> writing = Collections.<String>emptySet();
+    private boolean scheduled;
+    private int failures;
+    private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Directed Edge write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * @param window The number of milliseconds that changes are collected for
+     * before they are written.
+     * @param maxItems The number of items with unwritten changes after which
+     * saves of further items wait for the queue to be written.
+     */
+    WriteBehind(Database database, long window, int maxItems)
+    {
+        this.database = database;
+        this.window = window;
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Queues the item's unsaved changes, merging them with any changes to the
+     * same item which have not been written yet.
+     */
+    synchronized void save(Item item)
+    {
+        while(pending.size() >= maxItems && !pending.containsKey(item.getName()))
+        {
+            flusher.execute(() -> flushPending());
+
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Item merged = pending.get(item.getName());
+
+        if(merged == null)
+        {
+            merged = new Item(database, item.getName());
+            pending.put(item.getName(), merged);
+        }
+
+        item.writeChangesTo(merged);
+
+        if(!scheduled)
+        {
+            scheduled = true;
+            flusher.schedule(() -> flushPending(), delay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes all queued changes and waits until the server has accepted them.
+     *
+     * @throws ResourceException If some of the changes were not accepted.
+     * Those changes stay queued and are sent again with the next batch, unless
+     * they have failed MAX_ATTEMPTS times.
+     */
+    void flush() throws ResourceException
+    {
+        ResourceException error = drain();
+
+        if(error != null)
+        {
+            throw error;
+        }
+    }
+
+    /**
+     * Writes the queued changes if any of them are for the item, including
+     * changes in a batch which is being written, so that a direct write of the
+     * item is not overtaken by older queued changes.
+     *
+     * @throws ResourceException If the item's queued changes were not accepted.
+     */
+    void flush(String id) throws ResourceException
+    {
+        synchronized(this)
+        {
+            if(!pending.containsKey(id) && !writing.contains(id))
+            {
+                return;
+            }
+        }
+
+        ResourceException error = drain();
+
+        synchronized(this)
+        {
+            if(error != null && pending.containsKey(id))
+            {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Writes all queued changes and stops the background thread.  Changes
+     * which still cannot be written are logged and dropped.
+     */
+    void shutdown()
+    {
+        ResourceException error = drain();
+
+        if(error != null)
+        {
+            synchronized(this)
+            {
+                Logger.getLogger(WriteBehind.class.getName()).log(Level.SEVERE,
+                        pending.size() + " items with queued changes were not written",
+                        error);
+            }
+        }
+
+        flusher.shutdownNow();
+    }
+
+    /**
+     * Runs a flush on the background thread and waits for it, after any batch
+     * which is already being written.
+     *
+     * @return The first error from the flush, or null if every chunk was
+     * accepted.
+     */
+    private ResourceException drain()
+    {
+        Future<ResourceException> result = flusher.submit(() -> flushPending());
+
+        try
+        {
+            return result.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            Logger.getLogger(WriteBehind.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Sends the queued items as chunked additions followed by chunked removals,
+     * which matches the order a save of a single item applies them in.  Items
+     * in failed chunks are queued again, and another flush is scheduled.
+     *
+     * @return The first error, or null if every chunk was accepted.
+     */
+    private ResourceException flushPending()
+    {
+        Map<String, Item> items;
+
+        synchronized(this)
+        {
+            items = pending;
+            pending = new LinkedHashMap<String, Item>();
+            writing = items.keySet();
+            scheduled = false;
+            notifyAll();
+        }
+
+        if(items.isEmpty())
+        {
+            return null;
+        }
+
+        Updater additions = new Updater(database, Updater.Method.Add);
+        Updater removals = new Updater(database, Updater.Method.Subtract);
+        additions.setChunkSize(CHUNK_SIZE, 0);
+        removals.setChunkSize(CHUNK_SIZE, 0);
+        List<Item> added = new ArrayList<Item>(items.values());
+        List<Item> removed = new ArrayList<Item>();
+
+        for(Item item : added)
+        {
+            additions.export(item);
+
+            if(item.subtractionNeeded())
+            {
+                removals.export(item);
+                removed.add(item);
+            }
+        }
+
+        Map<String, Item> failed = new LinkedHashMap<String, Item>();
+        ResourceException error = failedItems(additions.commit(), added, failed);
+
+        if(!removed.isEmpty())
+        {
+            ResourceException removalError = failedItems(removals.commit(), removed, failed);
+            error = error != null ? error : removalError;
+        }
+
+        synchronized(this)
+        {
+            writing = Collections.<String>emptySet();
+
+            for(String id : items.keySet())
+            {
+                if(!failed.containsKey(id))
+                {
+                    attempts.remove(id);
+                }
+            }
+
+            requeue(failed, error);
+        }
+
+        return error;
+    }
+
+    /**
+     * @return The window, doubled for each batch which has failed in a row.
+     */
+    private long delay()
+    {
+        return window << Math.min(failures, MAX_ATTEMPTS);
+    }
+
+    /**
+     * Collects the items in the summary's failed chunks, which were exported
+     * in the order of the list, and discards the chunks.
+     *
+     * @return The first chunk's error, or null if there were no failures.
+     */
+    private ResourceException failedItems(Updater.Summary summary, List<Item> exported,
+            Map<String, Item> failed)
+    {
+        ResourceException error = null;
+        int offset = 0;
+
+        for(Updater.Chunk chunk : summary.getChunks())
+        {
+            if(!chunk.isUploaded())
+            {
+                Logger.getLogger(WriteBehind.class.getName()).log(Level.SEVERE, null,
+                        chunk.getError());
+                error = error != null ? error : chunk.getError();
+                chunk.discard();
+
+                for(Item item : exported.subList(offset, offset + chunk.getItems()))
+                {
+                    failed.put(item.getName(), item);
+                }
+            }
+
+            offset += chunk.getItems();
+        }
+
+        return error;
+    }
+
+    /**
+     * Puts items from failed chunks back at the front of the queue.  Changes
+     * saved since are merged on top, since they are newer.  Items which have
+     * failed MAX_ATTEMPTS times are logged and dropped instead; changes to
+     * them saved while the batch was being written stay queued.
+     */
+    private void requeue(Map<String, Item> failed, ResourceException error)
+    {
+        if(failed.isEmpty())
+        {
+            failures = 0;
+            return;
+        }
+
+        failures++;
+        List<String> dropped = new ArrayList<String>();
+
+        for(Iterator<Item> i = failed.values().iterator(); i.hasNext();)
+        {
+            String id = i.next().getName();
+            Integer count = attempts.get(id);
+            count = count == null ? 1 : count + 1;
+
+            if(count < MAX_ATTEMPTS)
+            {
+                attempts.put(id, count);
+            }
+            else
+            {
+                attempts.remove(id);
+                dropped.add(id);
+                i.remove();
+            }
+        }
+
+        if(!dropped.isEmpty())
+        {
+            Logger.getLogger(WriteBehind.class.getName()).log(Level.SEVERE,
+                    "Dropped queued changes after " + MAX_ATTEMPTS + " attempts: " + dropped,
+                    error);
+        }
+
+        for(Item newer : pending.values())
+        {
+            Item older = failed.get(newer.getName());
+
+            if(older != null)
+            {
+                newer.writeChangesTo(older);
+            }
+            else
+            {
+                failed.put(newer.getName(), newer);
+            }
+        }
+
+        pending = failed;
+
+        if(!scheduled && !pending.isEmpty())
+        {
+            scheduled = true;
+            flusher.schedule(() -> flushPending(), delay(), TimeUnit.MILLISECONDS);
+        }
+    }
+}
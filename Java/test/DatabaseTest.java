@@ -1,6 +1,12 @@
 import com.directededge.Database;
 import com.directededge.Database.ResourceException;
 import com.directededge.Item;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -47,6 +53,132 @@ public class DatabaseTest
         importTest(database);
     }
 
+    @Test
+    public void gzippedFileImportTest() throws ResourceException
+    {
+        Database database = new Database("testdb", "test");
+        database.importFromFile("../testdb.xml.gz");
+        importTest(database);
+    }
+
+    @Test
+    public void compressedImportTest() throws ResourceException
+    {
+        Database database = new Database("testdb", "test");
+        database.setCompressUploads(true);
+        database.importFromFile("../testdb.xml");
+        importTest(database);
+        database.importFromFile("../testdb.xml.gz");
+        importTest(database);
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws ResourceException,
+            InterruptedException
+    {
+        final Database database = new Database("testdb", "test");
+        database.setMaxConnections(8, 8);
+        database.setIdleTimeout(1000);
+        database.importFromFile("../testdb.xml");
+
+        final List<Integer> sizes = new ArrayList<Integer>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for(int i = 0; i < 16; i++)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    int size = new Item(database, "product0").getRelated().size();
+
+                    synchronized(sizes)
+                    {
+                        sizes.add(size);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        database.close();
+
+        assertEquals(16, sizes.size());
+
+        for(int size : sizes)
+        {
+            assertEquals(20, size);
+        }
+    }
+
+    @Test
+    public void batchRelated() throws ResourceException
+    {
+        Database database = new Database("testdb", "test");
+        database.importFromFile("../testdb.xml");
+
+        Map<String, List<String>> related =
+                database.getRelated(Arrays.asList("product0", "product1", "product2"));
+
+        assertEquals(Arrays.asList("product0", "product1", "product2"),
+                new ArrayList<String>(related.keySet()));
+
+        for(String id : related.keySet())
+        {
+            assertEquals(new Item(database, id).getRelated(), related.get(id));
+        }
+
+        database.close();
+    }
+
+    @Test
+    public void groupRelated() throws ResourceException
+    {
+        Database database = new Database("testdb", "test");
+        database.importFromFile("../testdb.xml");
+
+        assertTrue(database.getGroupRelated(Arrays.asList("product1", "product2"),
+                new HashSet<String>(Arrays.asList("product")), 20).size() > 0);
+        assertEquals(new HashSet<String>(new Item(database, "product1").getRelated()),
+                new HashSet<String>(database.getGroupRelated(Arrays.asList("product1"))));
+
+        database.close();
+    }
+
+    @Test
+    public void readItems() throws ResourceException
+    {
+        Database database = new Database("testdb", "test");
+        database.importFromFile("../testdb.xml");
+
+        List<String> ids = new ArrayList<String>();
+
+        for(int i = 0; i < 50; i++)
+        {
+            ids.add("customer" + i);
+        }
+
+        ids.add("does-not-exist");
+
+        Map<String, ResourceException> failures = new HashMap<String, ResourceException>();
+        Map<String, Item> items = database.readItems(ids, failures);
+
+        assertEquals(50, items.size());
+        assertEquals(1, failures.size());
+        assertTrue(failures.containsKey("does-not-exist"));
+        assertEquals(new Item(database, "customer0").getLinks(""),
+                items.get("customer0").getLinks(""));
+
+        database.close();
+    }
+
     private void importTest(Database database)
     {
         Item customer0 = new Item(database, "customer0");
@@ -62,6 +62,29 @@ public class ExporterTest
         export(new Exporter(new FileOutputStream("test.xml")));
     }
 
+    @Test
+    public void escapedCharacters() throws ParserConfigurationException,
+            SAXException, IOException
+    {
+        Exporter exporter = new Exporter("test.xml");
+        Item item = new Item(exporter.getDatabase(), "a&b<c>\"d\"");
+        item.addTag("x < y");
+        item.linkTo("line\nbreak", 3, "type&");
+        item.setProperty("key", "value & more");
+        exporter.export(item);
+        exporter.finish();
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        Document doc = factory.newDocumentBuilder().parse(new File("test.xml"));
+
+        assertEquals("a&b<c>\"d\"", doc.getElementsByTagName("item").item(0)
+                     .getAttributes().getNamedItem("id").getTextContent());
+        assertEquals("x < y", doc.getElementsByTagName("tag").item(0).getTextContent());
+        assertEquals("line\nbreak", doc.getElementsByTagName("link").item(0).getTextContent());
+        assertEquals("value & more",
+                     doc.getElementsByTagName("property").item(0).getTextContent());
+    }
+
     private void export(Exporter exporter) throws ParserConfigurationException,
             SAXException, IOException
     {
@@ -1,9 +1,21 @@
+import com.directededge.Cache;
 import com.directededge.Database;
 import com.directededge.Database.ResourceException;
 import com.directededge.Item;
+import com.directededge.Recommendation;
+import com.directededge.TagIndex;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -226,6 +238,435 @@ public class ItemTest
         assertFalse(popular.equals(unpopular));
     }
 
+    @Test
+    public void asynchronous() throws InterruptedException, ExecutionException
+    {
+        Item product = new Item(database, "product0");
+        CompletableFuture<List<String>> related = product.getRelatedAsync();
+        CompletableFuture<List<String>> recommended =
+                new Item(database, "customer0").getRecommendedAsync();
+        CompletableFuture<Map<String, Map<String, Integer>>> links =
+                product.getLinksAsync();
+
+        CompletableFuture.allOf(related, recommended, links).get();
+
+        assertEquals(20, related.get().size());
+        assertEquals(20, recommended.get().size());
+        assertEquals(product.getLinks(), links.get());
+    }
+
+    @Test
+    public void itemCache()
+    {
+        Cache cache = new Cache(1024 * 1024, 60000);
+        database.setItemCache(cache);
+
+        assertTrue(new Item(database, "customer0").getTags().contains("customer"));
+        assertTrue(new Item(database, "customer0").getTags().contains("customer"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        Item customer = new Item(database, "customer0");
+        customer.setProperty("cached", "yes");
+        customer.save();
+
+        assertEquals("yes", new Item(database, "customer0").getProperty("cached"));
+
+        database.setItemCache(null);
+    }
+
+    @Test
+    public void queryCache()
+    {
+        Cache cache = new Cache(1024 * 1024, 60000);
+        database.setQueryCache(cache);
+
+        Item product = new Item(database, "product0");
+        List<String> related = product.getRelated();
+        assertEquals(related, new Item(database, "product0").getRelated());
+        assertEquals(1, cache.getHits());
+
+        related.clear();
+        assertEquals(20, product.getRelated().size());
+
+        product.getRelated(new HashSet<String>(), 5);
+        assertEquals(2, cache.getMisses());
+
+        database.setQueryCache(null);
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws InterruptedException
+    {
+        Cache cache = new Cache(1024 * 1024, 100, 60000);
+        database.setQueryCache(cache);
+
+        Item product = new Item(database, "product0");
+        List<String> related = product.getRelated();
+        Thread.sleep(200);
+
+        assertEquals(related, product.getRelated());
+        assertEquals(related, product.getRelated());
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(1, cache.getMisses());
+
+        database.setQueryCache(null);
+    }
+
+    @Test
+    public void concurrentIdenticalQueries() throws InterruptedException,
+            ExecutionException
+    {
+        List<CompletableFuture<List<String>>> futures =
+                new ArrayList<CompletableFuture<List<String>>>();
+        long requests = database.getRequestCount();
+
+        for(int i = 0; i < 20; i++)
+        {
+            futures.add(new Item(database, "product0").getRelatedAsync());
+        }
+
+        List<String> first = futures.get(0).get();
+
+        for(CompletableFuture<List<String>> future : futures)
+        {
+            assertEquals(first, future.get());
+            assertNotSame(first, future.get());
+        }
+
+        assertTrue(database.getRequestCount() - requests < futures.size());
+    }
+
+    @Test
+    public void batchedQueries() throws InterruptedException, ExecutionException
+    {
+        List<List<String>> expected = new ArrayList<List<String>>();
+
+        for(int i = 0; i < 10; i++)
+        {
+            expected.add(new Item(database, "product" + i).getRelated());
+        }
+
+        database.setBatchWindow(10, 5);
+        long requests = database.getRequestCount();
+
+        List<CompletableFuture<List<String>>> futures =
+                new ArrayList<CompletableFuture<List<String>>>();
+
+        for(int i = 0; i < 10; i++)
+        {
+            futures.add(new Item(database, "product" + i).getRelatedAsync());
+        }
+
+        for(int i = 0; i < 10; i++)
+        {
+            assertEquals(expected.get(i), futures.get(i).get());
+        }
+
+        assertTrue(database.getRequestCount() - requests < futures.size());
+
+        assertEquals(expected.get(0), new Item(database, "product0").getRelated());
+
+        database.setBatchWindow(0, 0);
+    }
+
+    @Test
+    public void batchedQueriesOnSmallExecutor() throws InterruptedException,
+            ExecutionException
+    {
+        List<String> expected = new Item(database, "product0").getRelated();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        database.setExecutor(executor);
+        database.setBatchWindow(10, 5);
+
+        CompletableFuture<List<String>> first = new Item(database, "product0").getRelatedAsync();
+        CompletableFuture<List<String>> second = new Item(database, "product1").getRelatedAsync();
+        Future<List<String>> blocking =
+                executor.submit(() -> new Item(database, "product0").getRelated());
+
+        assertEquals(expected, first.get());
+        assertFalse(second.get().isEmpty());
+        assertEquals(expected, blocking.get());
+
+        database.setBatchWindow(0, 0);
+        database.setExecutor(null);
+        executor.shutdown();
+    }
+
+    @Test
+    public void includeProperties()
+    {
+        Item other = new Item(database, "product21");
+        other.setProperty("foo", "bar");
+        other.save();
+
+        HashSet<String> tags = new HashSet<String>();
+        tags.add("product");
+
+        List<Recommendation> related =
+                new Item(database, "product1").getRelatedWithProperties(tags, 20);
+        assertEquals(1, related.get(0).getRank());
+
+        boolean found = false;
+
+        for(Recommendation result : related)
+        {
+            if(result.getId().equals("product21"))
+            {
+                assertEquals("bar", result.getProperty("foo"));
+                found = true;
+            }
+        }
+
+        assertTrue(found);
+
+        found = false;
+
+        for(Recommendation result :
+                new Item(database, "customer2").getRecommendedWithProperties(tags, 20))
+        {
+            if(result.getId().equals("product21"))
+            {
+                assertEquals("bar", result.getProperty("foo"));
+                found = true;
+            }
+        }
+
+        assertTrue(found);
+    }
+
+    @Test
+    public void preselected()
+    {
+        Item item = new Item(database, "product1");
+        String first = item.getRelated().get(0);
+
+        item.addPreselected("product2");
+        item.addPreselected("product3");
+        item.save();
+
+        item = new Item(database, "product1");
+        assertEquals(2, item.getPreselected().size());
+        assertEquals("product2", item.getRelated().get(0));
+        assertEquals("product3", item.getRelated().get(1));
+
+        item.removePreselected("product2");
+        item.removePreselected("product3");
+        item.save();
+
+        assertEquals(first, new Item(database, "product1").getRelated().get(0));
+    }
+
+    @Test
+    public void blacklisted()
+    {
+        Item item = new Item(database, "product1");
+        String first = item.getRelated().get(0);
+
+        item.addBlacklisted(first);
+        item.save();
+
+        item = new Item(database, "product1");
+        assertTrue(item.getBlacklisted().contains(first));
+        assertFalse(item.getRelated().contains(first));
+    }
+
+    @Test
+    public void excluded()
+    {
+        Item item = new Item(database, "product1");
+        List<String> related = item.getRelated(new HashSet<String>(), 10);
+
+        HashMap<String, Object> options = new HashMap<String, Object>();
+        options.put("maxResults", 10);
+        options.put("excluded", related.subList(0, 2));
+        List<String> filtered = item.getRelated(new HashSet<String>(), options);
+
+        assertEquals(10, filtered.size());
+        assertFalse(filtered.contains(related.get(0)));
+        assertFalse(filtered.contains(related.get(1)));
+
+        // Too many to fit in the URL; these are filtered by the client.
+
+        List<String> excluded = new ArrayList<String>(related.subList(0, 2));
+
+        for(int i = 0; i < 1000; i++)
+        {
+            excluded.add("unknown" + i);
+        }
+
+        options.put("excluded", excluded);
+        assertEquals(filtered, item.getRelated(new HashSet<String>(), options));
+    }
+
+    @Test
+    public void relatedWithTags()
+    {
+        HashSet<String> tags = new HashSet<String>();
+        tags.add("customer");
+
+        Item product = new Item(database, "product0");
+        List<String> related = product.getRelated(tags, 10);
+        assertFalse(related.isEmpty());
+        assertFalse(related.equals(product.getRelated()));
+
+        for(String id : related)
+        {
+            Set<String> itemTags = new Item(database, id).getTags();
+            assertTrue(itemTags.contains("customer"));
+            assertFalse(itemTags.contains("product"));
+        }
+    }
+
+    @Test
+    public void tagIndex() throws IOException
+    {
+        TagIndex index = new TagIndex();
+        index.load("../testdb.xml");
+        assertTrue(index.getItems("product").contains("product0"));
+        index.setComplete(true);
+
+        database.setQueryCache(new Cache(1 << 20, 60000));
+        database.setTagIndex(index);
+
+        HashSet<String> tags = new HashSet<String>();
+        tags.add("product");
+
+        Item item = new Item(database, "customer0");
+        List<String> products = item.getRelated(tags, 5);
+        long misses = database.getQueryCache().getMisses();
+
+        tags.clear();
+        tags.add("customer");
+        List<String> customers = item.getRelated(tags, 5);
+
+        assertEquals(misses, database.getQueryCache().getMisses());
+        assertFalse(products.isEmpty());
+        assertFalse(customers.isEmpty());
+
+        for(String id : products)
+        {
+            assertTrue(index.getTags(id).contains("product"));
+        }
+
+        for(String id : customers)
+        {
+            assertTrue(index.getTags(id).contains("customer"));
+        }
+
+        database.setTagIndex(null);
+        database.setQueryCache(null);
+    }
+
+    @Test
+    public void commitAdditionsAndRemovals() throws ResourceException
+    {
+        Item item = new Item(database, "customer1");
+        item.addTag("first");
+        item.addTag("second");
+        item.commit();
+
+        item = new Item(database, "customer1");
+        item.addTag("third");
+        item.removeTag("first");
+        item.addTag("second");
+        item.removeTag("second");
+        item.commit();
+
+        Set<String> tags = new Item(database, "customer1").getTags();
+        assertFalse(tags.contains("first"));
+        assertFalse(tags.contains("second"));
+        assertTrue(tags.contains("third"));
+        assertTrue(tags.contains("customer"));
+    }
+
+    @Test
+    public void deltaSave() throws ResourceException
+    {
+        Item item = new Item(database, "customer2");
+        int links = item.getLinks("").size();
+        String linked = item.getLinks("").keySet().iterator().next();
+
+        item.setProperty("name", "first");
+        item.commit();
+        item.setProperty("name", "second");
+        item.addTag("delta");
+        item.unlinkFrom(linked);
+        item.commit();
+
+        item = new Item(database, "customer2");
+        assertEquals("second", item.getProperty("name"));
+        assertTrue(item.getTags().contains("delta"));
+        assertTrue(item.getTags().contains("customer"));
+        assertEquals(links - 1, item.getLinks("").size());
+        assertFalse(item.getLinks("").containsKey(linked));
+
+        item.clearProperty("name");
+        item.removeTag("delta");
+        item.commit();
+
+        item = new Item(database, "customer2");
+        assertNull(item.getProperty("name"));
+        assertFalse(item.getTags().contains("delta"));
+    }
+
+    @Test
+    public void writeBehind() throws ResourceException
+    {
+        database.setWriteBehind(100, 1000);
+
+        for(int i = 0; i < 10; i++)
+        {
+            Item item = new Item(database, "customer3");
+            item.linkTo("product" + (40 + i));
+            item.save();
+        }
+
+        Item item = new Item(database, "customer3");
+        item.addTag("queued");
+        item.removeTag("queued");
+        item.save();
+
+        database.flushWrites();
+        database.setWriteBehind(0, 0);
+
+        item = new Item(database, "customer3");
+
+        for(int i = 0; i < 10; i++)
+        {
+            assertTrue(item.getLinks("").containsKey("product" + (40 + i)));
+        }
+
+        assertFalse(item.getTags().contains("queued"));
+    }
+
+    @Test
+    public void commitAfterQueuedSave() throws ResourceException
+    {
+        database.setWriteBehind(60000, 1000);
+
+        Item item = new Item(database, "customer4");
+        item.addTag("queued");
+        item.save();
+
+        item = new Item(database, "customer4");
+        item.removeTag("queued");
+        item.addTag("committed");
+        item.commit();
+
+        database.setWriteBehind(0, 0);
+
+        item = new Item(database, "customer4");
+        assertFalse(item.getTags().contains("queued"));
+        assertTrue(item.getTags().contains("committed"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeBehindWithoutRoom()
+    {
+        database.setWriteBehind(100, 0);
+    }
+
     @Test
     public void tagOperations()
     {
@@ -3,6 +3,8 @@ import com.directededge.Database.ResourceException;
 import com.directededge.Item;
 import com.directededge.Updater;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -76,4 +78,162 @@ public class UpdaterTest
         assertFalse(item.getTags().contains("customer"));
         assertTrue(item.getLinks().size() > 0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void spillToDisk()
+    {
+        int spilled = spillFiles();
+        updater = new Updater(database);
+        updater.setMemoryLimit(1024);
+
+        for(int i = 0; i < 1000; i++)
+        {
+            Item item = new Item(updater.getDatabase(), "spilled" + i);
+            item.addTag("spilled");
+            updater.export(item);
+        }
+
+        assertTrue(spillFiles() > spilled);
+        updater.finish();
+        assertEquals(spilled, spillFiles());
+
+        Item item = new Item(updater.getDatabase(), "spilled999");
+        assertTrue(item.getTags().contains("spilled"));
+    }
+
+    @Test
+    public void chunked()
+    {
+        updater = new Updater(database);
+        updater.setChunkSize(10, 0);
+
+        for(int i = 0; i < 25; i++)
+        {
+            Item item = new Item(updater.getDatabase(), "chunked" + i);
+            item.addTag("chunked");
+            updater.export(item);
+        }
+
+        updater.finish();
+
+        assertEquals(3, updater.getChunks().size());
+        assertEquals(5, updater.getChunks().get(2).getItems());
+        assertTrue(updater.getFailedChunks().isEmpty());
+
+        Item item = new Item(updater.getDatabase(), "chunked24");
+        assertTrue(item.getTags().contains("chunked"));
+    }
+
+    @Test
+    public void deleteItems()
+    {
+        List<String> ids = new ArrayList<String>();
+
+        for(int i = 0; i < 20; i++)
+        {
+            ids.add("customer" + i);
+        }
+
+        Updater.Summary summary = database.deleteItems(ids, 8);
+
+        assertTrue(summary.isSuccessful());
+        assertEquals(3, summary.getChunks().size());
+        assertEquals(20, summary.getItems());
+        assertTrue(new Item(database, "customer5").getTags().isEmpty());
+        assertFalse(new Item(database, "customer20").getTags().isEmpty());
+    }
+
+    @Test
+    public void mixedMethods()
+    {
+        updater = new Updater(database);
+
+        Item added = new Item(updater.getDatabase(), "customer1");
+        added.addTag("mixed");
+        updater.export(added);
+
+        Item subtracted = new Item(updater.getDatabase(), "customer2");
+        subtracted.removeTag("customer");
+        updater.export(subtracted, Updater.Method.Subtract);
+
+        updater.export(new Item(updater.getDatabase(), "customer3"),
+                Updater.Method.Delete);
+
+        Updater.Summary summary = updater.commit();
+
+        assertTrue(summary.isSuccessful());
+        assertEquals(3, summary.getChunks().size());
+        assertEquals(Updater.Method.Delete, summary.getChunks().get(2).getMethod());
+
+        Item item = new Item(updater.getDatabase(), "customer1");
+        assertTrue(item.getTags().contains("mixed"));
+        assertTrue(item.getTags().contains("customer"));
+
+        item = new Item(updater.getDatabase(), "customer2");
+        assertFalse(item.getTags().contains("customer"));
+        assertTrue(item.getLinks().size() > 0);
+
+        assertTrue(new Item(database, "customer3").getTags().isEmpty());
+    }
+
+    @Test
+    public void pipelined() throws InterruptedException
+    {
+        updater = new Updater(database);
+        updater.setChunkSize(10, 0);
+        updater.setUploadThreads(4, 2);
+
+        List<Thread> producers = new ArrayList<Thread>();
+
+        for(int i = 0; i < 4; i++)
+        {
+            final int producer = i;
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for(int j = 0; j < 25; j++)
+                    {
+                        Item item = new Item(updater.getDatabase(),
+                                "pipelined" + producer + "-" + j);
+                        item.addTag("pipelined");
+                        updater.export(item);
+                    }
+                }
+            };
+            producers.add(thread);
+            thread.start();
+        }
+
+        for(Thread thread : producers)
+        {
+            thread.join();
+        }
+
+        Updater.Summary summary = updater.commit();
+
+        assertTrue(summary.isSuccessful());
+        assertEquals(100, summary.getItems());
+        assertEquals(10, summary.getChunks().size());
+
+        Item item = new Item(updater.getDatabase(), "pipelined3-24");
+        assertTrue(item.getTags().contains("pipelined"));
+    }
+
+    private static int spillFiles()
+    {
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+        int count = 0;
+
+        for(String name : files)
+        {
+            if(name.startsWith("directededge"))
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}